@@ -4,12 +4,14 @@ import logger.LogSetup;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import shared.ConnectionThreads;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
 
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 public class ECS implements IECS {
 
@@ -23,6 +25,8 @@ public class ECS implements IECS {
     private HashMap<String, String> metadata;
     private HashMap<String, ECSComm> connections;
 
+    /** Serve each server connection on a virtual thread rather than a platform thread. */
+    private boolean virtualThreads;
 
     public ECS(int port, InetAddress address) {
         this.port = port;
@@ -31,6 +35,13 @@ public class ECS implements IECS {
         this.connections = new HashMap<>();
     }
 
+    /**
+     * Takes effect when ECS is started by {@link #run()}.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
     public void broadcastSubscriptions(KVMessage message) throws IOException {
         // send subscription message to each server
         for (Map.Entry<String, ECSComm> entry : this.connections.entrySet()) {
@@ -205,12 +216,17 @@ public class ECS implements IECS {
         running = initializeECS();
 
         if (serverSocket != null) {
+            ExecutorService connectionThreads = virtualThreads ? ConnectionThreads.newPerConnectionExecutor("ecs") : null;
             while (this.running) {
                 try {
                     Socket client = serverSocket.accept();
                     ECSComm connection = new ECSComm(client, this);
                     logger.info("New connection registered with ECS");
-                    new Thread(connection).start();
+                    if (connectionThreads != null) {
+                        connectionThreads.execute(connection);
+                    } else {
+                        new Thread(connection).start();
+                    }
 
                     logger.info("Connected to "
                             + client.getInetAddress().getHostAddress()
@@ -314,6 +330,7 @@ public class ECS implements IECS {
                 "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n";
         System.out.printf(s,
                 "-p", "Sets the port of ECS",
@@ -323,6 +340,8 @@ public class ECS implements IECS {
                 "-ll", "Loglevel. Default: ALL.",
                 "", "| Possible log levels are:",
                 "", "| ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF",
+                "-vt", "Serve server connections on virtual threads (Java 21+, platform threads " +
+                        "otherwise). Options are true and false. Default: false",
                 "-h", "Display the help.");
     }
 
@@ -358,6 +377,7 @@ public class ECS implements IECS {
             InetAddress addr = InetAddress.getByName("127.0.0.1");
             String logDir = "ECS.log"; // default is curr directory
             String logLevelStr = "ALL";
+            boolean virtualThreads = false;
 
 
             // convert args to an ArrayList
@@ -390,6 +410,10 @@ public class ECS implements IECS {
                             // LogLevel, e.g., INFO, ALL, ...,
                             logLevelStr = tokens.get(1);
                             break;
+                        case "-vt":
+                            // virtual threads for server connections
+                            virtualThreads = Boolean.parseBoolean(tokens.get(1));
+                            break;
                     }
                     tokens.remove(1);
                     tokens.remove(0);
@@ -402,6 +426,7 @@ public class ECS implements IECS {
 
                 new LogSetup(logDir, logLevel);
                 final ECS ecs = new ECS(port, addr);
+                ecs.setVirtualThreads(virtualThreads);
                 Runtime.getRuntime().addShutdownHook(new Thread() {
                     public void run() {
                         ecs.close();
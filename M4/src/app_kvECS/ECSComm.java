@@ -1,16 +1,20 @@
 package app_kvECS;
 
 import org.apache.log4j.Logger;
+import shared.messages.BinaryProtocol;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
+import shared.messages.MessageFramer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -23,13 +27,17 @@ public class ECSComm implements Runnable {
 	private static Logger logger = Logger.getRootLogger();
 
 	private boolean isOpen;
-	private static final int BUFFER_SIZE = 1000;
-	private static final int DROP_SIZE = 129 * BUFFER_SIZE;
+	private static final int DROP_SIZE = 129 * 1000;
 	private String clientListenerIpPort;
 
 	private Socket clientSocket;
 	private InputStream input;
+	private MessageFramer framer;
+	/** Whether the server asked for BinaryProtocol frames, guarded by outputLock. */
+	private boolean binary;
 	private OutputStream output;
+	/** Held while writing to output, a lock so a blocked write does not pin a virtual thread. */
+	private final Lock outputLock = new ReentrantLock();
 
 	private ECS ecs;
 
@@ -51,6 +59,7 @@ public class ECSComm implements Runnable {
 		try {
 			output = clientSocket.getOutputStream();
 			input = clientSocket.getInputStream();
+			framer = new MessageFramer(input, DROP_SIZE);
 
 			KVMessage servInitMessage = receiveMessage();
 			this.clientListenerIpPort = servInitMessage.getKey() + ":" + servInitMessage.getValue();
@@ -141,80 +150,57 @@ public class ECSComm implements Runnable {
 	 * @throws IOException some I/O error regarding the output stream 
 	 */
 	public void sendMessage(KVMessage msg) throws IOException {
-		byte[] msgBytes = msg.getMessageBytes();
-		logger.debug(Arrays.toString(msgBytes));
-		output.write(msgBytes, 0, msgBytes.length);
-		output.flush();
+		outputLock.lock();
+		try {
+			byte[] msgBytes = binary ? BinaryProtocol.encode(msg) : msg.getMessageBytes();
+			output.write(msgBytes, 0, msgBytes.length);
+			output.flush();
+		} finally {
+			outputLock.unlock();
+		}
 		logger.info("SEND \t<" 
 				+ clientSocket.getInetAddress().getHostAddress() + ":" 
 				+ clientSocket.getPort() + ">: '" 
 				+ msg.getMessage() +"'");
     }
 
-	private KVMessage receiveMessage() throws IOException {
-		
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-		/* read first char from stream */
-		byte read = (byte) input.read();
-		boolean reading = true;
-		if (read == 13 || read == 10) {
-			read = (byte) input.read();
+	/**
+	 * Answers the server's handshake and switches both directions to
+	 * BinaryProtocol frames.
+	 */
+	private void acceptBinaryProtocol() throws IOException {
+		outputLock.lock();
+		try {
+			output.write(BinaryProtocol.HANDSHAKE);
+			output.flush();
+			framer.setBinary(true);
+			binary = true;
+		} finally {
+			outputLock.unlock();
 		}
+	}
 
-		while(read != 13 && read !=-1 && reading) {/* CR, LF, error */
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			} 
-			
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-			
-			/* stop reading is DROP_SIZE is reached */
-			if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-				reading = false;
+	private KVMessage receiveMessage() throws IOException {
+		KVMessage msg;
+		if (framer.isBinary()) {
+			msg = framer.nextMessage();
+			/* end of stream */
+			if (msg == null) {
+				isOpen = false;
+				msg = new KVMessage(KVMessage.StatusType.FAILED, "Error");
 			}
-			
-			/* read next char from stream */
-			read = (byte) input.read();
-		}
-		
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
 		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-		}
-		
-		msgBytes = tmp;
-		logger.info(Arrays.toString(msgBytes));
-		KVMessage msg;
-		if (msgBytes.length == 0) {
-			isOpen = false;
-		}
-		/* build final String */
-		try {
-			msg = new KVMessage(msgBytes);
-		} catch (Exception e) {
-			msg = new KVMessage(KVMessage.StatusType.FAILED, "Error");
+			ByteBuffer frame = framer.next();
+			if (frame != null && BinaryProtocol.isHandshake(frame)) {
+				acceptBinaryProtocol();
+				return receiveMessage();
+			}
+			/* end of stream, or an empty message */
+			if (frame == null || !frame.hasRemaining()) {
+				isOpen = false;
+				frame = ByteBuffer.allocate(0);
+			}
+			msg = MessageFramer.parse(frame);
 		}
 		logger.info("RECEIVE \t<" 
 				+ clientSocket.getInetAddress().getHostAddress() + ":" 
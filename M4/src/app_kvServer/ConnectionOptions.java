@@ -0,0 +1,53 @@
+package app_kvServer;
+
+import app_kvServer.IKVServer.ConnectionMode;
+
+/**
+ * How client connections are served, filled in from the KVServer command
+ * line.
+ */
+public class ConnectionOptions {
+
+    private ConnectionMode mode = ConnectionMode.THREAD;
+
+    private int ioThreads = 2;
+
+    private int workerThreads = 64;
+
+    public ConnectionMode getMode() {
+        return mode;
+    }
+
+    public void setMode(ConnectionMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return how many selector threads share the connections in NIO mode
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is needed");
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * @return how many requests are handled at once in NIO mode, each may
+     *      block on storage
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is needed");
+        }
+        this.workerThreads = workerThreads;
+    }
+}
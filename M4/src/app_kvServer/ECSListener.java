@@ -1,31 +1,52 @@
 package app_kvServer;
 
 import org.apache.log4j.Logger;
+import shared.messages.BinaryProtocol;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
+import shared.messages.MessageFramer;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ECSListener implements Runnable {
-    private static final int BUFFER_SIZE = 1000;
-    private static final int DROP_SIZE = 129 * BUFFER_SIZE;
+    private static final int DROP_SIZE = 129 * 1000;
+    /** Key-value pairs handed to storage at a time when importing transferred data. */
+    private static final int IMPORT_BATCH_SIZE = 1000;
+    private static final String HINTS_MARKER = KVServer.CACHE_HINTS_KEY + ";";
     private static Logger logger = Logger.getRootLogger();
     private KVServer kvServer;
     private InetAddress ecsAddress;
     private int ecsPort;
     private Socket socket;
 
-    private BufferedInputStream input;
+    private MessageFramer input;
 
     private BufferedOutputStream output;
 
+    /**
+     * Held while writing to output, which client connections share with the
+     * listener. A lock rather than synchronized, which would pin a virtual
+     * thread to its carrier while it blocks on the socket.
+     */
+    private final Lock outputLock = new ReentrantLock();
+
+    /** Whether the ECS agreed to BinaryProtocol frames. */
+    private boolean binary;
+
     private boolean running;
 
     public ECSListener(KVServer server, InetAddress address, int port) {
@@ -37,8 +58,10 @@ public class ECSListener implements Runnable {
 
     public void connect() throws Exception {
         this.socket = new Socket(this.ecsAddress, this.ecsPort);
-        this.input = new BufferedInputStream(this.socket.getInputStream());
+        this.input = new MessageFramer(this.socket.getInputStream(), DROP_SIZE);
         this.output = new BufferedOutputStream(this.socket.getOutputStream());
+        this.binary = BinaryProtocol.negotiate(this.output, this.input);
+        logger.debug("Talking to the ECS in the " + (binary ? "binary" : "text") + " protocol");
     }
 
     public boolean initializeListener() {
@@ -54,85 +77,39 @@ public class ECSListener implements Runnable {
     public void shutdown() {
         kvServer.setStatus("WRITE_LOCKED");
         try {
-            String data = dataToString(kvServer.exportData());
-            sendMessage(new KVMessage(IKVMessage.StatusType.SHUTDOWN, data));
-        } catch (IOException e) {
+            sendData(IKVMessage.StatusType.SHUTDOWN, kvServer.exportData(), kvServer.exportHints());
+        } catch (IOException | UncheckedIOException e) {
             logger.error("Error occurred while trying to send a shutdown message to ECS");
         }
     }
 
+    /**
+     * Called by client connections as well as the listener itself, so
+     * messages are written one at a time under {@link #outputLock}.
+     */
     public void sendMessage(KVMessage msg) throws IOException {
-        byte[] msgBytes = msg.getMessageBytes();
-        //logger.debug(Arrays.toString(msgBytes));
-        output.write(msgBytes, 0, msgBytes.length);
-        output.flush();
-        logger.info("SEND \t<"
-                + socket.getInetAddress().getHostAddress() + ":"
-                + socket.getPort() + ">: '"
-                + msg.getMessage() +"'");
+        outputLock.lock();
+        try {
+            byte[] msgBytes = binary ? BinaryProtocol.encode(msg) : msg.getMessageBytes();
+            output.write(msgBytes, 0, msgBytes.length);
+            output.flush();
+            logger.info("SEND \t<"
+                    + socket.getInetAddress().getHostAddress() + ":"
+                    + socket.getPort() + ">: '"
+                    + msg.getMessage() +"'");
+        } finally {
+            outputLock.unlock();
+        }
     }
 
+    /**
+     * @return the next message from the ECS, or null once it closed the
+     *      connection
+     */
     private KVMessage receiveMessage() throws IOException {
-
-        int index = 0;
-        byte[] msgBytes = null, tmp = null;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-        if (read == 13 || read == 10) {
-            read = (byte) input.read();
-        }
-
-        while(read != 13 && read !=-1 && reading) {/* CR, LF, error */
-            /* if buffer filled, copy to msg array */
-            if(index == BUFFER_SIZE) {
-                if(msgBytes == null){
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
-                }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
-
-            /* only read valid characters, i.e. letters and constants */
-            bufferBytes[index] = read;
-            index++;
-
-            /* stop reading is DROP_SIZE is reached */
-            if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
-            }
-
-            /* read next char from stream */
-            read = (byte) input.read();
-        }
-
-        if(msgBytes == null){
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-        }
-
-        msgBytes = tmp;
-        //logger.info(Arrays.toString(msgBytes));
-        KVMessage msg;
-        /* build final String */
-        try {
-            msg = new KVMessage(msgBytes);
-        } catch (Exception e) {
-            msg = new KVMessage(KVMessage.StatusType.FAILED, "Error");
+        KVMessage msg = input.nextMessage();
+        if (msg == null) {
+            return null;
         }
         logger.info("RECEIVE \t<"
                 + socket.getInetAddress().getHostAddress() + ":"
@@ -153,6 +130,11 @@ public class ECSListener implements Runnable {
             while (this.running) {
                 try {
                     KVMessage latestMsg = receiveMessage();
+                    if (latestMsg == null) {
+                        logger.error("ECS closed the connection");
+                        this.running = false;
+                        break;
+                    }
                     handleMessage(latestMsg);
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -161,13 +143,134 @@ public class ECSListener implements Runnable {
         }
     }
 
-    private String dataToString(Map<String, String> map) {
-        StringBuilder kvString = new StringBuilder();
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            kvString.append(entry.getKey()).append(";").append(entry.getValue());
-            kvString.append(";");
+    /**
+     * Sends "<status> key;value;key;value" with the pairs written to the
+     * socket as they come out of storage, so the data is never held in
+     * memory as a whole. The output stream's buffer bounds each write. On
+     * a binary connection the pairs are the key of a message streamed in
+     * frames, which the ECS receives whole, however large.
+     * <p>
+     * The hot keys follow as one last pair, {@link KVServer#CACHE_HINTS_KEY}
+     * with the keys joined by ','. It comes last because the ECS picks the
+     * receiving server by the first key, and is only sent along with data.
+     */
+    private void sendData(IKVMessage.StatusType status, Iterator<Map.Entry<String, String>> data,
+                          List<String> hints) throws IOException {
+        outputLock.lock();
+        try {
+            OutputStream body = binary ? BinaryProtocol.keyStream(output, status) : output;
+            if (!binary) {
+                output.write((status.toString() + " ").getBytes());
+            }
+            int count = 0;
+            try {
+                while (data.hasNext()) {
+                    Map.Entry<String, String> entry = data.next();
+                    if (count > 0) {
+                        body.write(';');
+                    }
+                    body.write((entry.getKey() + ";" + entry.getValue()).getBytes());
+                    count++;
+                }
+            } finally {
+                if (data instanceof Closeable) {
+                    // releases what the storage holds open for an export cut short
+                    ((Closeable) data).close();
+                }
+            }
+            String encodedHints = encodeHints(hints);
+            if (count > 0 && encodedHints.length() > 0) {
+                body.write((";" + HINTS_MARKER + encodedHints).getBytes());
+            }
+            if (binary) {
+                body.close();
+            } else {
+                output.write(new byte[]{13, 10});
+            }
+            output.flush();
+            logger.info("SEND \t<"
+                    + socket.getInetAddress().getHostAddress() + ":"
+                    + socket.getPort() + ">: '"
+                    + status + "' with " + count + " key-value pair(s)");
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Stores "key;value;key;value" data in batches of IMPORT_BATCH_SIZE pairs
+     * instead of splitting it into one array of every key and value.
+     */
+    private boolean importData(String data) {
+        int start = 0;
+        String[] batch = new String[2 * IMPORT_BATCH_SIZE];
+        int size = 0;
+        while (start <= data.length()) {
+            int end = data.indexOf(';', start);
+            if (end < 0) {
+                end = data.length();
+            }
+            batch[size++] = data.substring(start, end);
+            start = end + 1;
+            if (size == batch.length) {
+                if (!kvServer.importData(batch)) {
+                    return false;
+                }
+                size = 0;
+            }
+        }
+        return size == 0 || kvServer.importData(Arrays.copyOf(batch, size));
+    }
+
+    /**
+     * Keys the hint format cannot carry are left out, they are just not
+     * warmed.
+     */
+    private static String encodeHints(List<String> hints) {
+        StringBuilder encoded = new StringBuilder();
+        for (String key : hints) {
+            if (key.isEmpty() || key.matches(".*[,;\\s].*")) {
+                continue;
+            }
+            if (encoded.length() > 0) {
+                encoded.append(',');
+            }
+            encoded.append(key);
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @return where the cache hints pair starts if it is the last pair of the
+     *      data, otherwise -1
+     */
+    private static int hintsStart(String data) {
+        int start = data.lastIndexOf(HINTS_MARKER);
+        if (start < 0 || (start > 0 && data.charAt(start - 1) != ';')
+                || data.indexOf(';', start + HINTS_MARKER.length()) >= 0) {
+            return -1;
+        }
+        return start;
+    }
+
+    private static List<String> decodeHints(String encoded) {
+        List<String> hints = new ArrayList<>();
+        for (String key : encoded.split(",")) {
+            if (!key.isEmpty()) {
+                hints.add(key);
+            }
         }
-        return kvString.toString();
+        return hints;
+    }
+
+    private static boolean hasEvenFieldCount(String data) {
+        int separators = 0;
+        for (int i = 0; i < data.length(); i++) {
+            if (data.charAt(i) == ';') {
+                separators++;
+            }
+        }
+        return separators % 2 == 1;
     }
 
     public String getServerIpAndPort() {
@@ -179,13 +282,8 @@ public class ECSListener implements Runnable {
         switch (message.getStatus()) {
             case TR_REQ:
                 kvServer.setStatus("WRITE_LOCKED");
-                data = dataToString(kvServer.exportData(message.getKey(), message.getValue()));
-                if (data.length() == 0) {
-                    sendMessage(new KVMessage(IKVMessage.StatusType.TR_RES, data));
-                    break;
-                }
-                data = data.substring(0, data.length() - 1);
-                sendMessage(new KVMessage(IKVMessage.StatusType.TR_RES, data));
+                sendData(IKVMessage.StatusType.TR_RES, kvServer.exportData(message.getKey(), message.getValue()),
+                        kvServer.exportHints(message.getKey(), message.getValue()));
                 break;
             case TR_INIT:
                 data = message.getKey();
@@ -193,13 +291,24 @@ public class ECSListener implements Runnable {
                     sendMessage(new KVMessage(IKVMessage.StatusType.TR_SUCC, "success"));
                     break;
                 }
-                String[] keyVals = data.split(";");
-                if (keyVals.length % 2 != 0){
+                if (data.endsWith(";")) {
+                    // older senders terminate the last pair too
+                    data = data.substring(0, data.length() - 1);
+                }
+                if (!hasEvenFieldCount(data)) {
                     logger.error("Data transfer failed. Missing key or value");
                     sendMessage(new KVMessage(IKVMessage.StatusType.FAILED, "failed"));
                     break;
                 }
-                if (kvServer.importData(keyVals)) {
+                List<String> hints = new ArrayList<>();
+                int hintsStart = hintsStart(data);
+                if (hintsStart >= 0) {
+                    hints = decodeHints(data.substring(hintsStart + HINTS_MARKER.length()));
+                    data = hintsStart == 0 ? "" : data.substring(0, hintsStart - 1);
+                }
+                if (data.length() == 0 || importData(data)) {
+                    int warmed = kvServer.warmCache(hints);
+                    logger.debug("Warmed the cache with " + warmed + " of " + hints.size() + " hinted keys");
                     sendMessage(new KVMessage(IKVMessage.StatusType.TR_SUCC, "success"));
                 } else {
                     logger.error("Couldn't store key-values at server");
@@ -238,7 +347,7 @@ public class ECSListener implements Runnable {
             case BROADCAST_DELETE:
             case BROADCAST_UPDATE:
                 // TODO: send to all connected clients
-                for (Map.Entry<String, KVServerComm> entry: this.kvServer.getClientConnections().entrySet()) {
+                for (Map.Entry<String, IClientConnection> entry: this.kvServer.getClientConnections().entrySet()) {
                     entry.getValue().sendMessage(message);
                 }
         }
@@ -0,0 +1,18 @@
+package app_kvServer;
+
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+
+/**
+ * A client connected to the server, however its connection is served.
+ * Used to push messages the client did not ask for, such as metadata and
+ * subscription updates.
+ */
+public interface IClientConnection {
+
+    /**
+     * Sends the message to the client. May be called from any thread.
+     */
+    public void sendMessage(KVMessage msg) throws IOException;
+}
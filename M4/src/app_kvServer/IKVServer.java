@@ -5,7 +5,23 @@ public interface IKVServer {
         None,
         LRU,
         LFU,
-        FIFO
+        FIFO,
+        TINYLFU,
+        ARC
+    };
+
+    public enum StorageType {
+        FILE,
+        LOG,
+        LSM,
+        MEMORY,
+        OFFHEAP
+    };
+
+    public enum ConnectionMode {
+        THREAD,
+        VIRTUAL,
+        NIO
     };
 
     /**
@@ -0,0 +1,134 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Answers client requests, independently of how the connection they came in
+ * on is served, so the thread-per-connection and the NIO front ends share
+ * one implementation of the protocol.
+ */
+public class KVRequestHandler {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	private KVServer kvServer;
+
+	public KVRequestHandler(KVServer kvServer) {
+		this.kvServer = kvServer;
+	}
+
+	private KVMessage handlePUTMessage(KVMessage msg) throws Exception {
+
+		if (kvServer.isWriteLocked()) {
+			logger.info("Server is currently write locked");
+			return new KVMessage(IKVMessage.StatusType.SERVER_WRITE_LOCK, "error");
+		}
+		boolean keyExists = kvServer.inCache(msg.getKey()) || kvServer.inStorage(msg.getKey());
+		if (!keyExists && msg.getValue().equals("null")) {
+			logger.debug("Trying to DELETE for non-existent key:" + msg.getKey());
+			return new KVMessage(IKVMessage.StatusType.DELETE_ERROR, msg.getKey());
+		}
+		boolean validDeletion = keyExists && (Objects.equals(msg.getValue(), "null"));
+		KVMessage res;
+		if (validDeletion) {
+			logger.debug("Trying to DELETE for key:" + msg.getKey());
+			kvServer.deleteKV(msg.getKey());
+			// TODO SEND TO ECS FOR BROADCAST
+			KVMessage ecsBroadcast = new KVMessage(IKVMessage.StatusType.BROADCAST_DELETE, msg.getKey());
+			this.kvServer.getEcsListener().sendMessage(ecsBroadcast);
+			return new KVMessage(KVMessage.StatusType.DELETE_SUCCESS, msg.getKey());
+		}
+
+		if (!keyExists) {
+			logger.debug("Trying to PUT key: " + msg.getKey() + " with value: " + msg.getValue());
+			kvServer.putKV(msg.getKey(), msg.getValue());
+			return new KVMessage(KVMessage.StatusType.PUT_SUCCESS,
+					msg.getKey(), msg.getValue());
+		}
+
+		logger.debug("Trying to PUT_UPDATE for key: " + msg.getKey() + " with value: " + msg.getValue());
+		kvServer.putKV(msg.getKey(), msg.getValue());
+		res = new KVMessage(KVMessage.StatusType.PUT_UPDATE,
+				msg.getKey(), msg.getValue());
+		// TODO: SEND TO ECS FOR BROADCAST
+		KVMessage ecsBroadcast = new KVMessage(IKVMessage.StatusType.BROADCAST_UPDATE, msg.getKey(), msg.getValue());
+		this.kvServer.getEcsListener().sendMessage(ecsBroadcast);
+		return res;
+
+	}
+
+	/**
+	 * @return the response to a client request, carrying the request's id
+	 */
+	public KVMessage handleMessage(KVMessage msg) throws IOException {
+		KVMessage res = respond(msg);
+		res.setRequestId(msg.getRequestId());
+		return res;
+	}
+
+	private KVMessage respond(KVMessage msg) throws IOException {
+		KVMessage res;
+		if (kvServer.isStopped()) {
+			return res = new KVMessage(IKVMessage.StatusType.SERVER_STOPPED, "error");
+		}
+		boolean keyExists;
+		if (msg.getKey() != null && msg.getKey().length() > 10 ) {
+			logger.info("Key (" + msg.getKey().length() +") too long");
+			return res = new KVMessage(IKVMessage.StatusType.FAILED, "Key too long!");
+		}
+
+		if (msg.getValue() != null && msg.getValue().length() > 60000) {
+			logger.info("Value (" + msg.getValue().length() +" too long\"");
+			return res = new KVMessage(IKVMessage.StatusType.FAILED, "Value too long");
+		}
+		// TODO: send metadata to client when SERVER_NOT_RESPONSIBLE
+		if ((msg.getStatus() == IKVMessage.StatusType.GET || msg.getStatus() == IKVMessage.StatusType.PUT) && !kvServer.keyInRange(msg.getKey())) {
+			logger.info("KVServer not responsible for this key:" + msg.getKey());
+			return res = new KVMessage(IKVMessage.StatusType.SERVER_NOT_RESPONSIBLE);
+		}
+		try{
+			switch (msg.getStatus()) {
+				case GET:
+					logger.debug("Trying to GET " + msg.getKey());
+					keyExists = kvServer.inCache(msg.getKey()) || kvServer.inStorage(msg.getKey());
+					if (keyExists) {
+						logger.debug("Key found: "  + msg.getKey());
+						res = new KVMessage(KVMessage.StatusType.GET_SUCCESS, msg.getKey(), kvServer.getKV(msg.getKey()));
+						return res;
+					}
+					logger.debug("Key not found: " + msg.getKey());
+					res = new KVMessage(KVMessage.StatusType.GET_ERROR, msg.getKey());
+					return res;
+				case PUT:
+					return handlePUTMessage(msg);
+				case KEYRANGE:
+					return res = new KVMessage(IKVMessage.StatusType.KEYRANGE_SUCCESS, kvServer.metadataToString());
+				case KEYRANGE_READ:
+					return res = new KVMessage(IKVMessage.StatusType.KEYRANGE_READ_SUCCESS, kvServer.extendedMetadataToString()); // TODO: Sam's job
+				case STATS:
+					return res = new KVMessage(IKVMessage.StatusType.STATS, "cache", kvServer.getCacheStats());
+				default:
+					return res = new KVMessage(IKVMessage.StatusType.FAILED, "Unknown request");
+				}
+		} catch (Exception e) {
+			//TODO: Can client handle error messages?
+			logger.debug(e.getMessage());
+
+			switch (e.getMessage()) {
+				case "PUT_ERROR":
+					return res = new KVMessage(IKVMessage.StatusType.PUT_ERROR, msg.getKey(), msg.getValue());
+				case "GET_ERROR":
+					return res = new KVMessage(IKVMessage.StatusType.GET_ERROR, msg.getKey());
+				case "DELETE_ERROR":
+					return res = new KVMessage(IKVMessage.StatusType.DELETE_ERROR, msg.getKey());
+			}
+			return res = new KVMessage(IKVMessage.StatusType.FAILED, "An IO-error occurred at the server");
+		}
+
+	}
+}
@@ -1,18 +1,45 @@
 package app_kvServer;
 
+import app_kvServer.caching.ARCCache;
 import app_kvServer.caching.Cache;
+import app_kvServer.caching.CacheOptions;
+import app_kvServer.caching.CacheStats;
+import app_kvServer.caching.FIFOCache;
 import app_kvServer.caching.LFUCache;
+import app_kvServer.caching.LRUCache;
+import app_kvServer.caching.NegativeCache;
+import app_kvServer.caching.PartitionedCache;
+import app_kvServer.caching.TinyLFUCache;
+import app_kvServer.caching.Weigher;
+import app_kvServer.caching.WriteBackBuffer;
+import app_kvServer.persistence.IStorageEngine;
+import app_kvServer.persistence.LSMStorage;
+import app_kvServer.persistence.LogStorage;
+import app_kvServer.persistence.MemoryStorage;
+import app_kvServer.persistence.OffHeapStorage;
 import app_kvServer.persistence.Storage;
+import app_kvServer.persistence.StorageOptions;
 import logger.LogSetup;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import shared.ConnectionThreads;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
 
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class KVServer implements IKVServer {
     private static Logger logger = Logger.getRootLogger();
@@ -25,11 +52,25 @@ public class KVServer implements IKVServer {
 
     private CacheStrategy cacheStrategy = CacheStrategy.None;
 
+    private StorageType storageType = StorageType.FILE;
+
     private boolean running;
 
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    /**
+     * Requests on keys of the same stripe run one at a time, the rest in
+     * parallel. Locks rather than monitors, so a request waiting on storage
+     * does not pin the carrier of a virtual thread.
+     */
+    private final Lock[] keyLocks = new Lock[KEY_LOCK_STRIPES];
+
+    /** Held shared by single-key requests and exclusively by bulk data transfers. */
+    private final ReentrantReadWriteLock dataLock = new ReentrantReadWriteLock();
+
     private String status; //STOPPED. WRITE_LOCKED or ACTIVE.
 
-    private Storage store;
+    private IStorageEngine store;
 
     private InetAddress address;
 
@@ -45,9 +86,46 @@ public class KVServer implements IKVServer {
 
     private ECSListener ecsListener;
 
-    private Cache cache;
+    /** Null if caching is disabled. Kept in sync with storage under the key locks. */
+    private PartitionedCache cache;
+
+    /** Cache partitions are only added while each holds this many keys, or bytes with -csb. */
+    private static final int MIN_CACHE_PARTITION_SIZE = 8;
+    private static final long MIN_CACHE_PARTITION_BYTES = 1024 * 1024;
+
+    /**
+     * Reserved key of the pair that carries cache hints in a data transfer.
+     * Longer than any client key, so it never collides with stored data.
+     */
+    public static final String CACHE_HINTS_KEY = "__cache_hints__";
+
+    /** At most this many hot keys are shipped with a data transfer. */
+    private static final int MAX_CACHE_HINTS = 1000;
+
+    /** Keys known to be missing from storage, null if disabled. Kept in sync like the cache. */
+    private NegativeCache negativeCache;
 
-    private HashMap<String, KVServerComm> clientConnections;
+    /** Acknowledged writes not yet stored, null unless in write-back mode. */
+    private WriteBackBuffer writeBack;
+
+    private ScheduledExecutorService flusher;
+
+    private static final int WRITE_BACK_BATCH = 1000;
+
+    /** Null if caching is disabled. */
+    private CacheStats cacheStats;
+
+    private ScheduledExecutorService statsReporter;
+
+    /** Held while storing write-back writes, so flushes run one at a time. */
+    private final Lock flushLock = new ReentrantLock();
+
+    private Map<String, IClientConnection> clientConnections;
+
+    private ConnectionOptions connectionOptions = new ConnectionOptions();
+
+    /** Null unless connections are served in NIO mode. */
+    private NioServer nioServer;
 
     /**
      * Start KV Server at given port
@@ -58,24 +136,105 @@ public class KVServer implements IKVServer {
      * @param strategy  specifies the cache replacement strategy in case the cache
      *                  is full and there is a GET- or PUT-request on a key that is
      *                  currently not contained in the cache. Options are "FIFO", "LRU",
-     *                  and "LFU".
+     *                  "LFU" and "TINYLFU".
      * @param address  specifies which address the server should listen to.
      *                 set to localhost by default
      *
      */
     public KVServer(int port, int cacheSize, String strategy, String path, InetAddress address, InetAddress ecsIp, int ecsPort) {
+        this(port, cacheSize, strategy, path, new StorageOptions(), address, ecsIp, ecsPort);
+    }
+
+    /**
+     * Start KV Server at given port with the given storage engine
+     *
+     * @param storageOptions specifies how key-value pairs are persisted in the storage
+     *                       directory: the engine, FILE (one file per key), LOG
+     *                       (append-only segment files with an in-memory index) or
+     *                       LSM (memtable flushed to sorted tables in the background),
+     *                       MEMORY or OFFHEAP (nothing persisted, path unused), and
+     *                       its tuning knobs.
+     */
+    public KVServer(int port, int cacheSize, String strategy, String path, StorageOptions storageOptions, InetAddress address,
+                    InetAddress ecsIp, int ecsPort) {
+        this(port, new CacheOptions(cacheSize, CacheStrategy.valueOf(strategy)), path, storageOptions, address, ecsIp,
+                ecsPort);
+    }
+
+    /**
+     * Start KV Server at given port with the given cache and storage engine
+     *
+     * @param cacheOptions specifies the cache replacement strategy and how much
+     *                     the cache may hold, as a number of key-value pairs or
+     *                     as a memory budget in bytes.
+     */
+    public KVServer(int port, CacheOptions cacheOptions, String path, StorageOptions storageOptions, InetAddress address,
+                    InetAddress ecsIp, int ecsPort) {
         this.status = "STOPPED";
         this.port = port;
-        this.cacheSize = cacheSize;
-        this.cacheStrategy = CacheStrategy.valueOf(strategy);
-        this.store = new Storage(path);
+        this.cacheSize = cacheOptions.getSize();
+        this.cacheStrategy = cacheOptions.getStrategy();
+        this.storageType = storageOptions.getType();
+        switch (this.storageType) {
+            case LOG:
+                this.store = new LogStorage(path, storageOptions);
+                break;
+            case LSM:
+                this.store = new LSMStorage(path, storageOptions);
+                break;
+            case MEMORY:
+                this.store = new MemoryStorage();
+                break;
+            case OFFHEAP:
+                this.store = new OffHeapStorage();
+                break;
+            default:
+                this.store = new Storage(path, storageOptions);
+        }
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
         this.address = address;
         this.ecsIp = ecsIp;
         this.ecsPort = ecsPort;
-        this.clientConnections = new HashMap<>();
-        switch (this.cacheStrategy) {
+        this.clientConnections = new ConcurrentHashMap<>();
+        if (cacheOptions.getWriteBackIntervalMillis() > 0) {
+            startWriteBack(cacheOptions.getWriteBackIntervalMillis());
+        }
+        if (cacheOptions.getNegativeSize() > 0) {
+            this.negativeCache = new NegativeCache(cacheOptions.getNegativeSize());
+        }
+        final long capacity = cacheOptions.getCapacity();
+        final Weigher weigher = cacheOptions.getWeigher();
+        final int expectedKeys = cacheOptions.getExpectedKeys();
+        if (capacity > 0 && this.cacheStrategy != CacheStrategy.None) {
+            long minPartition = weigher == Weigher.ENTRIES ? MIN_CACHE_PARTITION_SIZE : MIN_CACHE_PARTITION_BYTES;
+            this.cache = new PartitionedCache(capacity, minPartition, new PartitionedCache.Factory() {
+                @Override
+                public Cache create(long partitionCapacity) {
+                    int partitionKeys = (int) Math.max(1, expectedKeys * partitionCapacity / capacity);
+                    return createCache(cacheStrategy, partitionCapacity, weigher, partitionKeys);
+                }
+            });
+            this.cacheStats = new CacheStats(cache);
+            if (cacheOptions.getStatsIntervalMillis() > 0) {
+                startStatsReporter(cacheOptions.getStatsIntervalMillis());
+            }
+        }
+    }
+
+    private static Cache createCache(CacheStrategy strategy, long capacity, Weigher weigher, int expectedKeys) {
+        switch (strategy) {
             case LFU:
-                this.cache = new LFUCache(this.cacheSize);
+                return new LFUCache(capacity, weigher, expectedKeys);
+            case FIFO:
+                return new FIFOCache(capacity, weigher);
+            case TINYLFU:
+                return new TinyLFUCache(capacity, weigher, expectedKeys);
+            case ARC:
+                return new ARCCache(capacity, weigher);
+            default:
+                return new LRUCache(capacity, weigher);
         }
     }
 
@@ -101,55 +260,291 @@ public class KVServer implements IKVServer {
         return this.cacheStrategy;
     }
 
+    public StorageType getStorageType() {
+        return this.storageType;
+    }
+
     @Override
     public int getCacheSize() {
         return this.cacheSize;
     }
 
+    /**
+     * Keys recently found missing are answered from the negative cache. A
+     * miss is remembered while holding the key lock, so a concurrent PUT or
+     * transfer cannot have stored the key in the meantime.
+     */
     @Override
     public boolean inStorage(String key) {
-        return store.inStorage(key);
+        if (negativeCache == null) {
+            return pendingOrStored(key);
+        }
+        if (negativeCache.contains(key)) {
+            return false;
+        }
+        dataLock.readLock().lock();
+        try {
+            Lock keyLock = lockFor(key);
+            keyLock.lock();
+            try {
+                boolean found = pendingOrStored(key);
+                if (!found) {
+                    negativeCache.add(key);
+                }
+                return found;
+            } finally {
+                keyLock.unlock();
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
     }
 
     @Override
     public boolean inCache(String key) {
-        // TODO Create cache
-        return false;
+        return cache != null && cache.inCache(key);
     }
 
+    /**
+     * A cache hit is served without touching the locks or the storage engine.
+     * A miss is read from storage and cached while still holding the key
+     * lock, so a concurrent PUT cannot be overwritten by the older value.
+     */
     @Override
-    public synchronized String getKV(String key) throws Exception {
-        String value = "";
-        if (inCache(key)) {
-            return "TODO";
+    public String getKV(String key) throws Exception {
+        String value = cache == null ? null : cache.get(key);
+        if (value != null) {
+            cacheStats.recordHit();
+            return value;
         }
+        dataLock.readLock().lock();
         try {
-             value = store.get(key);
+            Lock keyLock = lockFor(key);
+            keyLock.lock();
+            try {
+                long loadStart = System.nanoTime();
+                value = writeBack == null ? null : writeBack.get(key);
+                if (value == WriteBackBuffer.DELETED) {
+                    throw new IOException("Key not found: " + key);
+                }
+                if (value == null) {
+                    value = store.get(key);
+                }
+                if (cache != null) {
+                    cacheStats.recordMiss();
+                    cacheStats.recordLoad(System.nanoTime() - loadStart);
+                    cache.put(key, value);
+                }
+            } finally {
+                keyLock.unlock();
+            }
         } catch (Exception e) {
             throw new Exception("GET_ERROR");
+        } finally {
+            dataLock.readLock().unlock();
         }
         return value;
     }
 
+    /**
+     * Not synchronized on the server, so PUTs from different client threads
+     * reach the storage engine together and can share a write-ahead log sync.
+     * In write-back mode the PUT is only buffered and stored by the flusher.
+     */
     @Override
-    public synchronized void putKV(String key, String value) throws Exception {
-        if (!store.put(key, value)) {
-            throw new Exception("PUT_ERROR");
+    public void putKV(String key, String value) throws Exception {
+        dataLock.readLock().lock();
+        try {
+            Lock keyLock = lockFor(key);
+            keyLock.lock();
+            try {
+                // dropped first, a failed PUT may still have stored the key
+                if (negativeCache != null) {
+                    negativeCache.remove(key);
+                }
+                if (writeBack != null) {
+                    writeBack.put(key, value);
+                } else if (!store.put(key, value)) {
+                    if (cache != null) {
+                        cache.remove(key);
+                    }
+                    throw new Exception("PUT_ERROR");
+                }
+                if (cache != null) {
+                    cache.put(key, value);
+                }
+            } finally {
+                keyLock.unlock();
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+    }
+
+    public void deleteKV(String key) throws Exception {
+        dataLock.readLock().lock();
+        try {
+            Lock keyLock = lockFor(key);
+            keyLock.lock();
+            try {
+                boolean deleted = true;
+                if (writeBack != null) {
+                    writeBack.delete(key);
+                } else {
+                    // false for a key that is gone already, which is not a failure
+                    deleted = store.delete(key) || !store.inStorage(key);
+                }
+                if (cache != null) {
+                    cache.remove(key);
+                }
+                if (!deleted) {
+                    throw new Exception("DELETE_ERROR");
+                }
+                if (negativeCache != null) {
+                    negativeCache.add(key);
+                }
+            } finally {
+                keyLock.unlock();
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+    }
+
+    private Lock lockFor(String key) {
+        return keyLocks[(key.hashCode() & Integer.MAX_VALUE) % KEY_LOCK_STRIPES];
+    }
+
+    private boolean pendingOrStored(String key) {
+        String pending = writeBack == null ? null : writeBack.get(key);
+        if (pending != null) {
+            return pending != WriteBackBuffer.DELETED;
+        }
+        return store.inStorage(key);
+    }
+
+    /**
+     * Stores the writes buffered in write-back mode, oldest first and in
+     * batches, so each batch shares one sync of the storage engine. Keys
+     * stay readable from the buffer until their batch is stored.
+     */
+    public void flushWrites() {
+        if (writeBack == null) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            dataLock.readLock().lock();
+            try {
+                // only what is dirty now, writes arriving meanwhile wait for the next flush
+                int remaining = writeBack.size();
+                while (remaining > 0) {
+                    Map<String, String> batch = writeBack.beginFlush(Math.min(remaining, WRITE_BACK_BATCH));
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    remaining -= batch.size();
+                    boolean stored = storeBatch(batch);
+                    writeBack.endFlush(batch, stored);
+                    if (!stored) {
+                        logger.error("Unable to store " + batch.size() + " write-back writes, retrying later");
+                        break;
+                    }
+                }
+            } finally {
+                dataLock.readLock().unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * @return false if any write failed, which keeps the whole batch dirty for the next flush
+     */
+    private boolean storeBatch(Map<String, String> batch) {
+        List<String> keyVals = new ArrayList<>(batch.size() * 2);
+        boolean deleted = true;
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            if (entry.getValue() == WriteBackBuffer.DELETED) {
+                // false for a key that is gone already, which is not a failure
+                if (!store.delete(entry.getKey()) && store.inStorage(entry.getKey())) {
+                    deleted = false;
+                }
+            } else {
+                keyVals.add(entry.getKey());
+                keyVals.add(entry.getValue());
+            }
         }
+        return (keyVals.isEmpty() || store.processMap(keyVals.toArray(new String[0]))) && deleted;
+    }
+
+    private void startWriteBack(long intervalMillis) {
+        this.writeBack = new WriteBackBuffer();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "write-back-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushWrites();
+                } catch (RuntimeException e) {
+                    // keep the schedule alive, the writes stay buffered
+                    logger.error("Write-back flush failed", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
-    public synchronized void deleteKV(String key) throws Exception {
-        store.delete(key);
+    private void startStatsReporter(long intervalMillis) {
+        this.statsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cache-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        statsReporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logger.info("Cache stats: " + cacheStats.report());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the cache statistics on one line, or "disabled" without a cache
+     */
+    public String getCacheStats() {
+        return cacheStats == null ? "disabled" : cacheStats.report();
     }
 
     @Override
     public void clearCache() {
-        // TODO Create cache
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
     @Override
     public boolean clearStorage() {
-        return store.clearStorage();
+        dataLock.writeLock().lock();
+        try {
+            clearCache();
+            if (writeBack != null) {
+                writeBack.clear();
+            }
+            return store.clearStorage();
+        } finally {
+            dataLock.writeLock().unlock();
+        }
     }
 
     public boolean isStopped() {
@@ -188,30 +583,132 @@ public class KVServer implements IKVServer {
         this.status = status;
     }
 
+    /**
+     * Also drops the cache partitions outside the new range, without
+     * looking at the cached keys.
+     */
     public void setRange(String lowerRange, String upperRange) {
         this.lowerRange = lowerRange;
         this.upperRange = upperRange;
+        if (cache != null) {
+            int dropped = cache.setRange(lowerRange, upperRange);
+            logger.debug("Dropped " + dropped + " of " + cache.getPartitionCount() + " cache partitions");
+        }
+    }
+
+    /**
+     * Streams the key-value pairs outside (lowerRange, upperRange] straight
+     * from storage, after storing any write-back writes. The server is write
+     * locked during a transfer, so the iterator is not guarded against
+     * concurrent writes.
+     */
+    public Iterator<Map.Entry<String, String>> exportData(String lowerRange, String upperRange) {
+        flushWrites();
+        return store.iterator(lowerRange, upperRange);
+    }
+
+    public Iterator<Map.Entry<String, String>> exportData() {
+        flushWrites();
+        return store.iterator();
     }
 
-    public synchronized Map<String, String> exportData(String lowerRange, String upperRange) throws IOException {
-        return store.createMap(lowerRange, upperRange);
+    /**
+     * @return the hottest cached keys outside (lowerRange, upperRange],
+     *      hottest first, for the server taking them over to warm its cache
+     */
+    public List<String> exportHints(String lowerRange, String upperRange) {
+        List<String> hints = new ArrayList<>();
+        if (cache == null) {
+            return hints;
+        }
+        for (String key : cache.hottestKeys(MAX_CACHE_HINTS)) {
+            if (!Storage.isHashInRange(DigestUtils.md5Hex(key), lowerRange, upperRange)) {
+                hints.add(key);
+            }
+        }
+        return hints;
     }
 
-    public synchronized Map<String, String> exportData() throws IOException {
-        return store.createMap();
+    public List<String> exportHints() {
+        return cache == null ? new ArrayList<String>() : cache.hottestKeys(MAX_CACHE_HINTS);
+    }
+
+    /**
+     * Loads the hinted keys into the cache after importing them, so the keys
+     * that were hot on the exporting server do not all miss at once here.
+     * Keys that are not stored here are skipped.
+     *
+     * @param hints hottest first
+     * @return the number of keys cached
+     */
+    public int warmCache(List<String> hints) {
+        if (cache == null) {
+            return 0;
+        }
+        int warmed = 0;
+        dataLock.readLock().lock();
+        try {
+            // coldest first, so the hottest are evicted last if they do not all fit
+            for (int i = hints.size() - 1; i >= 0; i--) {
+                String key = hints.get(i);
+                Lock keyLock = lockFor(key);
+                keyLock.lock();
+                try {
+                    // importData dropped any buffered writes of these keys
+                    if (cache.inCache(key) || !store.inStorage(key)) {
+                        continue;
+                    }
+                    try {
+                        cache.put(key, store.get(key));
+                        warmed++;
+                    } catch (IOException e) {
+                        logger.warn("Could not warm the cache with " + key, e);
+                    }
+                } finally {
+                    keyLock.unlock();
+                }
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+        return warmed;
     }
 
-    public synchronized boolean importData(String[] keyAndVals) {
-        return store.processMap(keyAndVals);
+    public boolean importData(String[] keyAndVals) {
+        dataLock.writeLock().lock();
+        try {
+            for (int i = 0; i < keyAndVals.length; i += 2) {
+                if (cache != null) {
+                    cache.remove(keyAndVals[i]);
+                }
+                if (writeBack != null) {
+                    writeBack.discard(keyAndVals[i]);
+                }
+                if (negativeCache != null) {
+                    negativeCache.remove(keyAndVals[i]);
+                }
+            }
+            return store.processMap(keyAndVals);
+        } finally {
+            dataLock.writeLock().unlock();
+        }
     }
 
-    public synchronized boolean removeRedundantData() {
-        return store.removeExtraData(this.lowerRange, this.upperRange);
+    public boolean removeRedundantData() {
+        // otherwise a late flush would bring back keys handed off to another server
+        flushWrites();
+        dataLock.writeLock().lock();
+        try {
+            // setRange already dropped the cached keys outside the range
+            return store.removeExtraData(this.lowerRange, this.upperRange);
+        } finally {
+            dataLock.writeLock().unlock();
+        }
     }
     public void setMetadata(HashMap<String, String> map) {
         this.metadata = map;
         KVMessage metaMessage = new KVMessage(IKVMessage.StatusType.QUIET_KEYRANGE, metadataToString());
-            for (Map.Entry<String, KVServerComm> entry : this.clientConnections.entrySet()) {
+            for (Map.Entry<String, IClientConnection> entry : this.clientConnections.entrySet()) {
                 try {
                     entry.getValue().sendMessage(metaMessage);
                 } catch (IOException e) {
@@ -256,14 +753,25 @@ public class KVServer implements IKVServer {
         return null;
     }
 
+    void addClientConnection(String ipAndPort, IClientConnection connection) {
+        this.clientConnections.put(ipAndPort, connection);
+    }
+
     public void deleteClientConnection(String ipAndPort) {
         this.clientConnections.remove(ipAndPort);
     }
 
-    public HashMap<String, KVServerComm> getClientConnections() {
+    public Map<String, IClientConnection> getClientConnections() {
         return clientConnections;
     }
 
+    /**
+     * Takes effect when the server is started by {@link #run()}.
+     */
+    public void setConnectionOptions(ConnectionOptions connectionOptions) {
+        this.connectionOptions = connectionOptions;
+    }
+
     @Override
     public void run() {
         running = initializeServer();
@@ -271,13 +779,21 @@ public class KVServer implements IKVServer {
         if (running) {
             new Thread(ecsListener).start();
         }
-        if (serverSocket != null) {
+        if (nioServer != null) {
+            nioServer.run();
+        } else if (serverSocket != null) {
+            ExecutorService connectionThreads = connectionOptions.getMode() == ConnectionMode.VIRTUAL
+                    ? ConnectionThreads.newPerConnectionExecutor("client") : null;
             while (this.running) {
                 try {
                     Socket client = serverSocket.accept();
                     KVServerComm connection = new KVServerComm(client, this);
                     this.clientConnections.put(client.getInetAddress().getHostAddress() + ":" + client.getPort(), connection);
-                    new Thread(connection).start();
+                    if (connectionThreads != null) {
+                        connectionThreads.execute(connection);
+                    } else {
+                        new Thread(connection).start();
+                    }
 
                     logger.info("Connected to "
                             + client.getInetAddress().getHostAddress()
@@ -298,7 +814,14 @@ public class KVServer implements IKVServer {
     private boolean initializeServer() {
         logger.info("Initialize server...");
         try {
-            this.serverSocket = new ServerSocket(port, 20000, address); // backlog -> value between 10k - 40k
+            if (connectionOptions.getMode() == ConnectionMode.NIO) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(address, port), 20000);
+                this.serverSocket = channel.socket();
+                this.nioServer = new NioServer(this, channel, connectionOptions);
+            } else {
+                this.serverSocket = new ServerSocket(port, 20000, address); // backlog -> value between 10k - 40k
+            }
             logger.info("Server listening on port: "
                     + serverSocket.getLocalPort());
             return true;
@@ -328,10 +851,23 @@ public class KVServer implements IKVServer {
         } catch (IOException ioe) {
             logger.error("Error closing server", ioe);
         }
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            flushWrites();
+        }
+        if (statsReporter != null) {
+            statsReporter.shutdown();
+            logger.info("Cache stats: " + cacheStats.report());
+        }
+        store.close();
         System.exit(0);
     }
 
     public void initiateShutdown() {
+        flushWrites();
         this.ecsListener.shutdown();
     }
 
@@ -371,19 +907,59 @@ public class KVServer implements IKVServer {
                 "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
+                "%-30.30s  %-30s%n" +
                 "%-30.30s  %-30s%n";
         System.out.printf(s,
                 "-b", "Sets the address and port of ECS. Format: <ip>:<port>",
                 "-p", "Sets the port of the server",
                 "-a", "Which address the server should listen to, set the default to localhost. Default: 127.0.0.1",
                 "-d", "Directory for files (Put here the files you need to persist the data)",
+                "-st", "Storage engine. Options are FILE (one file per key), LOG (append-only segments), " +
+                        "LSM (memtable + sorted tables), MEMORY (in memory only, nothing persisted) and " +
+                        "OFFHEAP (like MEMORY, but outside the Java heap). Default: FILE",
+                "-bfp", "False positive rate of the bloom filter kept for every LSM table. Default: 0.01",
+                "-wal", "Write-ahead log sync mode of the FILE and LSM engines and of the LOG engine's segments. " +
+                        "Options are none, interval (fsync every -wali ms) and every-batch (fsync before " +
+                        "acknowledging, shared by concurrent writers). Default: interval",
+                "-wali", "Write-ahead log sync interval in ms for -wal interval. Default: 100",
+                "-cmp", "Compression of stored values in the FILE, LOG and LSM engines. Options are none " +
+                        "and deflate. Default: none",
+                "-cmpt", "Size in bytes below which values are stored uncompressed. Default: 512",
                 "-l", "Relative path of the logfile. Default: file 'echo.log' in current directory",
                 "-ll", "Loglevel. Default: ALL.",
                 "", "| Possible log levels are:",
                 "", "| ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF",
                 "-csz", "Cache size. Specifies how many key-value pairs the server is allowed to keep in-memory",
+                "-csb", "Cache memory budget in bytes, counting keys, values and overhead. Overrides -csz " +
+                        "when set. Default: 0 (use -csz)",
+                "-ncs", "How many keys recently found missing are remembered, so repeated GETs and " +
+                        "DELETEs of them skip storage. 0 disables. Default: 10000",
+                "-wb", "Write-back mode: PUTs and DELETEs are acknowledged once buffered and stored in " +
+                        "batches every <ms> ms, repeated updates of a key stored once. 0 writes through. " +
+                        "Default: 0",
+                "-csi", "Interval in ms at which cache statistics (hits, misses, evictions, load time, " +
+                        "weight and hit ratios) are logged. 0 disables. Default: 60000",
                 "-cst", "Specifies the cache replacement strategy in case the cache is full. " +
-                        "Options are FIFO, LRU, and LFU.",
+                        "Options are FIFO, LRU, LFU, TINYLFU (LRU window with frequency-based " +
+                        "admission, resists scans) and ARC (balances recency and frequency by itself).",
+                "-cm", "Connection mode. THREAD serves each client on its own thread, VIRTUAL on its " +
+                        "own virtual thread (Java 21+, platform threads otherwise), NIO serves all " +
+                        "clients from a few selector threads and handles requests on a worker pool. " +
+                        "Default: THREAD",
+                "-iot", "Selector threads in NIO mode. Default: 2",
+                "-wt", "Worker threads handling requests in NIO mode. Default: 64",
                 "-h", "Display the help.");
     }
 
@@ -395,10 +971,11 @@ public class KVServer implements IKVServer {
             int port = -1;
             InetAddress addr = InetAddress.getByName("127.0.0.1");
             String stPath = null;
+            StorageOptions stOptions = new StorageOptions();
             String logDir = "server.log"; // default is curr directory
             String logLevelStr = "ALL";
-            int cSize = 21;
-            String cStrat = "LRU";
+            CacheOptions cOptions = new CacheOptions(21, CacheStrategy.LRU);
+            ConnectionOptions connOptions = new ConnectionOptions();
             InetAddress ecsAddr = InetAddress.getByName("127.0.0.1");
             int ecsPort = -1;
 
@@ -432,6 +1009,30 @@ public class KVServer implements IKVServer {
                             // storage path / directory for files
                             stPath = tokens.get(1);
                             break;
+                        case "-st":
+                            // storage engine
+                            stOptions.setType(StorageType.valueOf(tokens.get(1)));
+                            break;
+                        case "-bfp":
+                            // bloom filter false positive rate of the LSM tables
+                            stOptions.setBloomFalsePositiveRate(Double.parseDouble(tokens.get(1)));
+                            break;
+                        case "-wal":
+                            // write-ahead log sync mode
+                            stOptions.setWalSyncMode(tokens.get(1));
+                            break;
+                        case "-wali":
+                            // write-ahead log sync interval
+                            stOptions.setWalSyncIntervalMillis(Long.parseLong(tokens.get(1)));
+                            break;
+                        case "-cmp":
+                            // value compression codec
+                            stOptions.setCompressionCodec(tokens.get(1));
+                            break;
+                        case "-cmpt":
+                            // value compression threshold
+                            stOptions.setCompressionThreshold(Integer.parseInt(tokens.get(1)));
+                            break;
                         case "-l":
                             // relative path of the logfile
                             logDir = tokens.get(1);
@@ -442,10 +1043,38 @@ public class KVServer implements IKVServer {
                             break;
                         case "-csz":
                             // cache size
-                            cSize = Integer.parseInt(tokens.get(1));
+                            cOptions.setSize(Integer.parseInt(tokens.get(1)));
+                            break;
+                        case "-csb":
+                            // cache memory budget
+                            cOptions.setMaxBytes(Long.parseLong(tokens.get(1)));
+                            break;
+                        case "-ncs":
+                            // negative cache size
+                            cOptions.setNegativeSize(Integer.parseInt(tokens.get(1)));
+                            break;
+                        case "-wb":
+                            // write-back flush interval
+                            cOptions.setWriteBackIntervalMillis(Long.parseLong(tokens.get(1)));
+                            break;
+                        case "-csi":
+                            // cache statistics interval
+                            cOptions.setStatsIntervalMillis(Long.parseLong(tokens.get(1)));
+                            break;
+                        case "-cm":
+                            // connection mode
+                            connOptions.setMode(ConnectionMode.valueOf(tokens.get(1)));
+                            break;
+                        case "-iot":
+                            // NIO selector threads
+                            connOptions.setIoThreads(Integer.parseInt(tokens.get(1)));
+                            break;
+                        case "-wt":
+                            // NIO worker threads
+                            connOptions.setWorkerThreads(Integer.parseInt(tokens.get(1)));
                             break;
                         case "-cst":
-                            cStrat = tokens.get(1);
+                            cOptions.setStrategy(CacheStrategy.valueOf(tokens.get(1)));
                             break;
                     }
                     tokens.remove(1);
@@ -459,7 +1088,8 @@ public class KVServer implements IKVServer {
 
                 new LogSetup(logDir, logLevel);
                 final Thread mainThread = Thread.currentThread();
-                final KVServer kvServer = new KVServer(port, cSize, cStrat, stPath, addr, ecsAddr, ecsPort);
+                final KVServer kvServer = new KVServer(port, cOptions, stPath, stOptions, addr, ecsAddr, ecsPort);
+                kvServer.setConnectionOptions(connOptions);
                 Runtime.getRuntime().addShutdownHook(new Thread() {
                     public void run() {
                         try{
@@ -0,0 +1,518 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage;
+import shared.messages.MessageFramer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end for client connections. A few I/O threads each run
+ * a selector over their share of the connections and cut the incoming bytes
+ * into messages; the requests are handled on a worker pool, as they may
+ * block on storage. An idle connection costs its buffers instead of a
+ * thread.
+ * <p>
+ * The requests of one connection are handled one at a time, in the order
+ * they arrived, so the responses go out in the same order as with
+ * {@link KVServerComm}. It speaks the same protocols: CR terminated text,
+ * or {@link BinaryProtocol} frames once the client asks for them, whose
+ * request ids come back in the responses.
+ */
+public class NioServer {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Longer text messages are cut at this size and longer binary ones close
+     * the connection, as in KVServerComm.
+     */
+    private static final int DROP_SIZE = 129 * 1000;
+
+    /** Reading from a connection pauses while this many of its requests wait. */
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+
+    /**
+     * Reading from a connection and handling its requests pause while this
+     * many bytes of its responses wait, until the client reads them.
+     */
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+    /** Queued for a client's handshake, so it is answered after the requests before it. */
+    private static final KVMessage HANDSHAKE = new KVMessage(KVMessage.StatusType.FAILED, "handshake");
+
+    private final KVServer kvServer;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final KVRequestHandler handler;
+
+    private final IoLoop[] loops;
+
+    private final ExecutorService workers;
+
+    private volatile boolean running = true;
+
+    private int nextLoop;
+
+    public NioServer(KVServer kvServer, ServerSocketChannel serverChannel, ConnectionOptions options)
+            throws IOException {
+        this.kvServer = kvServer;
+        this.serverChannel = serverChannel;
+        this.handler = new KVRequestHandler(kvServer);
+        this.loops = new IoLoop[options.getIoThreads()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+        this.workers = Executors.newFixedThreadPool(options.getWorkerThreads(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nio-worker-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts the I/O threads and accepts connections until the server
+     * channel is closed.
+     */
+    public void run() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                Connection connection = new Connection(channel, loop);
+                kvServer.addClientConnection(connection.id, connection);
+                loop.register(connection);
+                logger.info("Connected to " + connection.id);
+            } catch (ClosedChannelException e) {
+                logger.error("Error! Server socket closed. \n");
+                break;
+            } catch (IOException e) {
+                logger.error("Error! Unable to establish connection. \n", e);
+            }
+        }
+        close();
+    }
+
+    public void close() {
+        running = false;
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * Selector thread serving a share of the connections. Other threads ask
+     * it to register connections and update interest sets through queues,
+     * as a selector's keys are best changed by the thread selecting on it.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> interestUpdates = new ConcurrentLinkedQueue<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(Connection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void updateInterest(Connection connection) {
+            interestUpdates.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    logger.error("Error! Selector failed", e);
+                    break;
+                }
+                Connection connection;
+                while ((connection = registrations.poll()) != null) {
+                    try {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (ClosedChannelException e) {
+                        connection.close();
+                    }
+                }
+                while ((connection = interestUpdates.poll()) != null) {
+                    connection.applyInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        logger.error("Error! Connection lost!");
+                        connection.close();
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Error! Unable to close selector", e);
+            }
+        }
+    }
+
+    /**
+     * One client connection. Bytes are read and written by its I/O loop,
+     * requests handled by one worker at a time.
+     */
+    private class Connection implements IClientConnection, Runnable {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final String id;
+        private volatile SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        /** Bytes of the message being received, up to its CR. */
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+        /**
+         * Frames received but not yet handled, from the start of the buffer
+         * up to its position. Null until the client asks for frames.
+         */
+        private ByteBuffer frames;
+
+        /** Guarded by itself, together with {@link #handling}. */
+        private final ArrayDeque<KVMessage> requests = new ArrayDeque<>();
+        private boolean handling;
+        private volatile boolean readPaused;
+
+        /** Responses not yet fully written, guarded by itself. */
+        private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<>();
+
+        /** Bytes left in {@link #writes}, guarded by it. */
+        private long queuedBytes;
+
+        /** Whether responses are sent as frames, guarded by {@link #writes}. */
+        private boolean binary;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.id = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+        }
+
+        void onReadable() throws IOException {
+            if (frames != null) {
+                readFrames();
+                return;
+            }
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            byte[] bytes = readBuffer.array();
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == 13) {
+                    partial.write(bytes, start, i - start);
+                    frame();
+                    start = i + 1;
+                    if (frames != null) {
+                        // the client switched to frames, which may follow in the same read
+                        frames.put(bytes, start, read - start);
+                        takeFrames();
+                        return;
+                    }
+                } else if (bytes[i] == 10 && i == start && partial.size() == 0) {
+                    // the LF after the previous message's CR
+                    start = i + 1;
+                } else if (partial.size() + i + 1 - start >= DROP_SIZE) {
+                    partial.write(bytes, start, i + 1 - start);
+                    frame();
+                    start = i + 1;
+                }
+            }
+            partial.write(bytes, start, read - start);
+        }
+
+        /**
+         * Queues the message received so far for handling.
+         */
+        private void frame() {
+            byte[] msgBytes = partial.toByteArray();
+            partial.reset();
+            if (msgBytes.length == 0) {
+                return;
+            }
+            if (BinaryProtocol.isHandshake(ByteBuffer.wrap(msgBytes))) {
+                frames = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                queue(HANDSHAKE);
+                return;
+            }
+            queue(MessageFramer.parse(ByteBuffer.wrap(msgBytes)));
+        }
+
+        private void readFrames() throws IOException {
+            if (!frames.hasRemaining()) {
+                // a message larger than the buffer
+                ByteBuffer grown = ByteBuffer.allocate(frames.capacity() * 2);
+                frames.flip();
+                grown.put(frames);
+                frames = grown;
+            }
+            if (channel.read(frames) < 0) {
+                close();
+                return;
+            }
+            takeFrames();
+        }
+
+        /**
+         * Queues the messages received whole and moves the rest to the front
+         * of the buffer.
+         */
+        private void takeFrames() throws IOException {
+            byte[] bytes = frames.array();
+            int start = 0;
+            int length;
+            while ((length = BinaryProtocol.messageLength(bytes, start, frames.position() - start, DROP_SIZE)) >= 0) {
+                queue(MessageFramer.parseBinary(bytes, start, length));
+                start += length;
+            }
+            if (start > 0) {
+                frames.flip();
+                frames.position(start);
+                frames.compact();
+            }
+        }
+
+        private void queue(KVMessage msg) {
+            logger.debug("RECEIVE \t<" + id + ">: '" + msg.getMessage() + "'");
+            synchronized (requests) {
+                requests.add(msg);
+                if (requests.size() >= MAX_QUEUED_REQUESTS && !readPaused) {
+                    readPaused = true;
+                    applyInterest();
+                }
+                if (handling) {
+                    return;
+                }
+                handling = true;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Handles the queued requests in order, until none are left.
+         */
+        @Override
+        public void run() {
+            while (true) {
+                KVMessage msg;
+                synchronized (requests) {
+                    if (backlogged()) {
+                        // the I/O loop carries on once the client has read some responses
+                        handling = false;
+                        return;
+                    }
+                    msg = requests.poll();
+                    if (msg == null) {
+                        handling = false;
+                        return;
+                    }
+                    if (readPaused && requests.size() < MAX_QUEUED_REQUESTS / 2) {
+                        readPaused = false;
+                        loop.updateInterest(this);
+                    }
+                }
+                try {
+                    if (msg == HANDSHAKE) {
+                        acceptBinaryProtocol();
+                    } else {
+                        sendMessage(handler.handleMessage(msg));
+                    }
+                } catch (IOException e) {
+                    logger.error("Error! Connection lost!");
+                    close();
+                } catch (Exception e) {
+                    logger.error("Error! Unable to handle request", e);
+                }
+            }
+        }
+
+        /**
+         * Writes as much of the message as the socket takes right away, the
+         * rest is written by the I/O loop when the socket is writable.
+         */
+        @Override
+        public void sendMessage(KVMessage msg) throws IOException {
+            boolean written;
+            synchronized (writes) {
+                written = write(ByteBuffer.wrap(binary ? BinaryProtocol.encode(msg) : msg.getMessageBytes()));
+            }
+            if (written) {
+                logger.debug("SEND \t<" + id + ">: '" + msg.getMessage() + "'");
+                return;
+            }
+            loop.updateInterest(this);
+            logger.debug("SEND \t<" + id + ">: '" + msg.getMessage() + "' (queued)");
+        }
+
+        /**
+         * Answers the client's handshake and sends the following responses as
+         * frames. Runs after the responses to the requests before it.
+         */
+        private void acceptBinaryProtocol() throws IOException {
+            boolean written;
+            synchronized (writes) {
+                written = write(ByteBuffer.wrap(BinaryProtocol.HANDSHAKE));
+                binary = true;
+            }
+            if (!written) {
+                loop.updateInterest(this);
+            }
+            logger.debug("Switched <" + id + "> to the binary protocol");
+        }
+
+        /**
+         * Guarded by {@link #writes}.
+         *
+         * @return false if the rest of the buffer was queued for the I/O loop
+         */
+        private boolean write(ByteBuffer buffer) throws IOException {
+            if (writes.isEmpty()) {
+                channel.write(buffer);
+            }
+            if (!buffer.hasRemaining()) {
+                return true;
+            }
+            writes.add(buffer);
+            queuedBytes += buffer.remaining();
+            return false;
+        }
+
+        void onWritable() throws IOException {
+            synchronized (writes) {
+                while (!writes.isEmpty()) {
+                    ByteBuffer buffer = writes.peek();
+                    queuedBytes -= channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    writes.poll();
+                }
+            }
+            resumeHandling();
+            applyInterest();
+        }
+
+        /**
+         * @return whether the client leaves too many responses unread
+         */
+        private boolean backlogged() {
+            synchronized (writes) {
+                return queuedBytes >= MAX_QUEUED_BYTES;
+            }
+        }
+
+        /**
+         * Restarts handling the queued requests if it stopped for a backlog.
+         */
+        private void resumeHandling() {
+            synchronized (requests) {
+                if (handling || requests.isEmpty() || backlogged()) {
+                    return;
+                }
+                handling = true;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Only called on the I/O loop's thread.
+         */
+        void applyInterest() {
+            SelectionKey current = key;
+            if (current == null || !current.isValid()) {
+                return;
+            }
+            int ops = 0;
+            synchronized (writes) {
+                if (!readPaused && queuedBytes < MAX_QUEUED_BYTES) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!writes.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            current.interestOps(ops);
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            kvServer.deleteClientConnection(id);
+            SelectionKey current = key;
+            if (current != null) {
+                current.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error! Unable to tear down connection!", e);
+            }
+            logger.debug("Closed connection to " + id);
+        }
+    }
+}
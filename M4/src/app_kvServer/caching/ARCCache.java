@@ -0,0 +1,291 @@
+package app_kvServer.caching;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive replacement cache (Megiddo and Modha). Keys seen once live in a
+ * recency list, keys hit again in a frequency list, each evicting its least
+ * recently used key. Evicted keys are remembered without their values in a
+ * ghost list per side. A miss on a ghost means that side was too small, so
+ * the target size of the recency list moves towards it: scans grow the
+ * recency side only as far as the ghosts ask for it and leave the frequently
+ * used keys alone, while recency heavy traffic takes the space back.
+ * <p>
+ * Sizes and the target are counted by a {@link Weigher}, so the same
+ * balancing works in entries or in bytes. Each ghost list remembers at most
+ * the capacity's weight of keys.
+ */
+public class ARCCache implements Cache {
+
+    private final long capacity;
+
+    private final Weigher weigher;
+
+    /** Keys hit once since they were cached, T1 in the paper. */
+    private final Region recent;
+
+    /** Keys hit at least twice, T2 in the paper. */
+    private final Region frequent;
+
+    /** Keys evicted from {@link #recent}, B1 in the paper. */
+    private final Ghosts recentGhosts;
+
+    /** Keys evicted from {@link #frequent}, B2 in the paper. */
+    private final Ghosts frequentGhosts;
+
+    /** Weight the recency list aims for, p in the paper. */
+    private long recentTarget;
+
+    private long evictions;
+
+    public ARCCache(int cacheSize) {
+        this(cacheSize, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param capacity total weight of the cached entries
+     */
+    public ARCCache(long capacity, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.recent = new Region(weigher);
+        this.frequent = new Region(weigher);
+        this.recentGhosts = new Ghosts(capacity);
+        this.frequentGhosts = new Ghosts(capacity);
+    }
+
+    @Override
+    public synchronized boolean inCache(String key) {
+        return recent.entries.containsKey(key) || frequent.entries.containsKey(key);
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        String value = recent.drop(key);
+        if (value == null) {
+            value = frequent.drop(key);
+        }
+        if (value != null) {
+            frequent.add(key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized boolean put(String key, String val) {
+        int added = weigher.weigh(key, val);
+        if (recent.drop(key) != null || frequent.drop(key) != null) {
+            if (added <= capacity) {
+                frequent.add(key, val);
+                makeRoom(0, false);
+            }
+            return true;
+        }
+        if (added > capacity) {
+            return true;
+        }
+        Integer ghost = recentGhosts.drop(key);
+        if (ghost != null) {
+            // the recency list was too small to keep this key
+            long step = Math.max(added, added * frequentGhosts.weight / Math.max(1, recentGhosts.weight + ghost));
+            recentTarget = Math.min(capacity, recentTarget + step);
+            makeRoom(added, false);
+            frequent.add(key, val);
+            return true;
+        }
+        ghost = frequentGhosts.drop(key);
+        if (ghost != null) {
+            long step = Math.max(added, added * recentGhosts.weight / Math.max(1, frequentGhosts.weight + ghost));
+            recentTarget = Math.max(0, recentTarget - step);
+            makeRoom(added, true);
+            frequent.add(key, val);
+            return true;
+        }
+        // a new key, the recency side and its ghosts together stay within the capacity
+        while (recent.weight + recentGhosts.weight + added > capacity && !recentGhosts.entries.isEmpty()) {
+            recentGhosts.dropEldest();
+        }
+        while (recent.weight + added > capacity && !recent.entries.isEmpty()) {
+            recent.removeEldest();
+            evictions++;
+        }
+        while (recent.weight + frequent.weight + recentGhosts.weight + frequentGhosts.weight + added > 2 * capacity
+                && !frequentGhosts.entries.isEmpty()) {
+            frequentGhosts.dropEldest();
+        }
+        makeRoom(added, false);
+        recent.add(key, val);
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (recent.drop(key) == null) {
+            frequent.drop(key);
+        }
+        // a deleted key coming back is a new key, not a sign the lists are misjudged
+        recentGhosts.drop(key);
+        frequentGhosts.drop(key);
+    }
+
+    @Override
+    public synchronized void clear() {
+        recent.reset();
+        frequent.reset();
+        recentGhosts.reset();
+        frequentGhosts.reset();
+        recentTarget = 0;
+    }
+
+    /**
+     * Frequently used keys first, then the recently used ones, each most
+     * recently used first.
+     */
+    @Override
+    public synchronized List<String> hottestKeys(int max) {
+        List<String> keys = new ArrayList<>();
+        for (Region region : new Region[]{frequent, recent}) {
+            List<String> regionKeys = new ArrayList<>(region.entries.keySet());
+            for (int i = regionKeys.size() - 1; i >= 0 && keys.size() < max; i--) {
+                keys.add(regionKeys.get(i));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public synchronized void evict() {
+        if (!recent.entries.isEmpty() || !frequent.entries.isEmpty()) {
+            replace(false);
+        }
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return recent.weight + frequent.weight;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return the weight the recency list currently aims for, between 0 and
+     *      the capacity
+     */
+    public synchronized long getRecentTarget() {
+        return recentTarget;
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * Evicts until an entry of the given weight fits.
+     */
+    private void makeRoom(long needed, boolean frequentGhostHit) {
+        while (recent.weight + frequent.weight + needed > capacity && (!recent.entries.isEmpty() || !frequent.entries.isEmpty())) {
+            replace(frequentGhostHit);
+        }
+    }
+
+    /**
+     * Evicts the least recently used key of the recency list if it is over
+     * its target, otherwise of the frequency list, remembering it as a ghost.
+     */
+    private void replace(boolean frequentGhostHit) {
+        boolean fromRecent = !recent.entries.isEmpty() && (frequent.entries.isEmpty() || recent.weight > recentTarget
+                || (frequentGhostHit && recent.weight == recentTarget));
+        if (fromRecent) {
+            Map.Entry<String, String> evicted = recent.removeEldest();
+            recentGhosts.add(evicted.getKey(), weigher.weigh(evicted.getKey(), evicted.getValue()));
+        } else {
+            Map.Entry<String, String> evicted = frequent.removeEldest();
+            frequentGhosts.add(evicted.getKey(), weigher.weigh(evicted.getKey(), evicted.getValue()));
+        }
+        evictions++;
+    }
+
+    /**
+     * Insertion ordered list of cached entries that tracks their weight.
+     * Entries are moved to the end when used, so iteration starts at the
+     * least recently used key.
+     */
+    private static class Region {
+        private final LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        private final Weigher weigher;
+        private long weight;
+
+        Region(Weigher weigher) {
+            this.weigher = weigher;
+        }
+
+        void add(String key, String value) {
+            entries.put(key, value);
+            weight += weigher.weigh(key, value);
+        }
+
+        String drop(String key) {
+            String value = entries.remove(key);
+            if (value != null) {
+                weight -= weigher.weigh(key, value);
+            }
+            return value;
+        }
+
+        Map.Entry<String, String> removeEldest() {
+            Map.Entry<String, String> eldest = entries.entrySet().iterator().next();
+            Map.Entry<String, String> removed = new AbstractMap.SimpleImmutableEntry<>(eldest);
+            drop(eldest.getKey());
+            return removed;
+        }
+
+        void reset() {
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Keys recently evicted, with the weight they had, oldest first. Bounded
+     * by the capacity, the oldest ghosts are forgotten first.
+     */
+    private static class Ghosts {
+        private final LinkedHashMap<String, Integer> entries = new LinkedHashMap<>();
+        private final long capacity;
+        private long weight;
+
+        Ghosts(long capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(String key, int keyWeight) {
+            entries.put(key, keyWeight);
+            weight += keyWeight;
+            while (weight > capacity) {
+                dropEldest();
+            }
+        }
+
+        Integer drop(String key) {
+            Integer keyWeight = entries.remove(key);
+            if (keyWeight != null) {
+                weight -= keyWeight;
+            }
+            return keyWeight;
+        }
+
+        void dropEldest() {
+            drop(entries.keySet().iterator().next());
+        }
+
+        void reset() {
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
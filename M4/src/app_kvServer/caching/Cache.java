@@ -1,14 +1,46 @@
 package app_kvServer.caching;
 
+import java.util.List;
+
+/**
+ * In-memory cache in front of the storage engine. Implementations must be
+ * safe to call from several client threads at once.
+ */
 public interface Cache {
 
     public boolean inCache(String key);
 
+    /**
+     * @return the cached value, or null if the key is not cached
+     */
     public String get(String key);
 
     public boolean put(String key, String val);
 
+    /**
+     * Drop the key, e.g. because it was deleted from storage
+     */
+    public void remove(String key);
+
     public void clear();
 
+    /**
+     * @return up to {@code max} cached keys, the ones the strategy would
+     *      evict last first
+     */
+    public List<String> hottestKeys(int max);
+
+    /**
+     * @return the total weight of the cached entries, as counted by the
+     *      cache's {@link Weigher}
+     */
+    public long getWeight();
+
+    /**
+     * @return how many entries were evicted or refused admission to make
+     *      room, since the cache was created
+     */
+    public long getEvictionCount();
+
     public void evict();
 }
@@ -0,0 +1,130 @@
+package app_kvServer.caching;
+
+import app_kvServer.IKVServer.CacheStrategy;
+
+/**
+ * Cache settings, filled in from the KVServer command line.
+ */
+public class CacheOptions {
+
+    private CacheStrategy strategy = CacheStrategy.None;
+
+    private int size;
+
+    private long maxBytes;
+
+    private int negativeSize = 10000;
+
+    private long writeBackIntervalMillis;
+
+    private long statsIntervalMillis = 60000;
+
+    public CacheOptions() {
+    }
+
+    public CacheOptions(int size, CacheStrategy strategy) {
+        this.size = size;
+        this.strategy = strategy;
+    }
+
+    public CacheStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(CacheStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return the number of key-value pairs the cache may hold, if it is not
+     *      limited by {@link #getMaxBytes()}
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the memory budget of the cache in bytes, or 0 to limit the
+     *      number of entries instead
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Cache memory budget must not be negative");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return how many missing keys are remembered, 0 to always ask storage
+     */
+    public int getNegativeSize() {
+        return negativeSize;
+    }
+
+    public void setNegativeSize(int negativeSize) {
+        if (negativeSize < 0) {
+            throw new IllegalArgumentException("Negative cache size must not be negative");
+        }
+        this.negativeSize = negativeSize;
+    }
+
+    /**
+     * @return the time between background flushes of write-back writes, or 0
+     *      if PUTs and DELETEs are written through to storage
+     */
+    public long getWriteBackIntervalMillis() {
+        return writeBackIntervalMillis;
+    }
+
+    public void setWriteBackIntervalMillis(long writeBackIntervalMillis) {
+        if (writeBackIntervalMillis < 0) {
+            throw new IllegalArgumentException("Write-back interval must not be negative");
+        }
+        this.writeBackIntervalMillis = writeBackIntervalMillis;
+    }
+
+    /**
+     * @return the time between cache statistics in the log, or 0 to not log
+     *      them
+     */
+    public long getStatsIntervalMillis() {
+        return statsIntervalMillis;
+    }
+
+    public void setStatsIntervalMillis(long statsIntervalMillis) {
+        if (statsIntervalMillis < 0) {
+            throw new IllegalArgumentException("Cache statistics interval must not be negative");
+        }
+        this.statsIntervalMillis = statsIntervalMillis;
+    }
+
+    /**
+     * @return the capacity the cache is built with, in units of {@link #getWeigher()}
+     */
+    public long getCapacity() {
+        return maxBytes > 0 ? maxBytes : size;
+    }
+
+    /**
+     * @return roughly how many keys fit in the cache, for sizing structures
+     *      that track keys; a memory budget assumes 1 KB per entry
+     */
+    public int getExpectedKeys() {
+        if (maxBytes > 0) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / 1024));
+        }
+        return size;
+    }
+
+    public Weigher getWeigher() {
+        return maxBytes > 0 ? Weigher.BYTES : Weigher.ENTRIES;
+    }
+}
@@ -0,0 +1,150 @@
+package app_kvServer.caching;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hit, miss and load counters of a cache, recorded by the server around its
+ * cache lookups. Evictions and the current weight are read from the cache
+ * itself.
+ * <p>
+ * Besides the totals since startup, hits and misses are counted in one
+ * second slots covering the last {@link #SLOTS} seconds, so the hit ratio
+ * can also be reported for recent windows, which follow a change of load
+ * much faster than the totals do.
+ */
+public class CacheStats {
+
+    private static final long SLOT_MILLIS = 1000;
+
+    /** Slots kept, enough for the longest window reported. */
+    private static final int SLOTS = 15 * 60;
+
+    /** Windows of the hit ratio in {@link #report()}, in minutes. */
+    private static final int[] REPORTED_WINDOWS = {1, 5, 15};
+
+    private final Cache cache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    private final AtomicLongArray slotHits = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray slotMisses = new AtomicLongArray(SLOTS);
+
+    /** The second each slot currently counts, a slot is reset when reused. */
+    private final AtomicLongArray slotSeconds = new AtomicLongArray(SLOTS);
+
+    public CacheStats(Cache cache) {
+        this.cache = cache;
+    }
+
+    public void recordHit() {
+        hits.incrementAndGet();
+        slotHits.incrementAndGet(slot(System.currentTimeMillis()));
+    }
+
+    public void recordMiss() {
+        misses.incrementAndGet();
+        slotMisses.incrementAndGet(slot(System.currentTimeMillis()));
+    }
+
+    /**
+     * @param nanos time taken to read a missed key from storage
+     */
+    public void recordLoad(long nanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public long getWeight() {
+        return cache.getWeight();
+    }
+
+    /**
+     * @return the mean time of a storage read after a miss, or 0 if there
+     *      was none
+     */
+    public double getAverageLoadMillis() {
+        long count = loads.get();
+        return count == 0 ? 0 : loadNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return the share of lookups since startup that were hits, or 0 if
+     *      there were none
+     */
+    public double getHitRatio() {
+        return ratio(hits.get(), misses.get());
+    }
+
+    /**
+     * @param windowMillis how far back to look, at most {@link #SLOTS} seconds
+     * @return the share of recent lookups that were hits, or 0 if there were
+     *      none
+     */
+    public double getHitRatio(long windowMillis) {
+        long now = System.currentTimeMillis() / SLOT_MILLIS;
+        long oldest = now - Math.min(SLOTS, Math.max(1, windowMillis / SLOT_MILLIS)) + 1;
+        long windowHits = 0;
+        long windowMisses = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long second = slotSeconds.get(i);
+            if (second >= oldest && second <= now) {
+                windowHits += slotHits.get(i);
+                windowMisses += slotMisses.get(i);
+            }
+        }
+        return ratio(windowHits, windowMisses);
+    }
+
+    /**
+     * @return the statistics on one line, as logged and sent to admins
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("hits=%d misses=%d evictions=%d weight=%d loadMs=%.3f hitRatio=%.3f",
+                getHitCount(), getMissCount(), getEvictionCount(), getWeight(),
+                getAverageLoadMillis(), getHitRatio()));
+        for (int minutes : REPORTED_WINDOWS) {
+            report.append(String.format(" hitRatio%dm=%.3f", minutes, getHitRatio(minutes * 60 * 1000L)));
+        }
+        return report.toString();
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * @return the index of the slot counting the current second, reset first
+     *      if it still holds an older second
+     */
+    private int slot(long millis) {
+        long second = millis / SLOT_MILLIS;
+        int index = (int) (second % SLOTS);
+        long previous = slotSeconds.get(index);
+        if (previous != second && slotSeconds.compareAndSet(index, previous, second)) {
+            // the few lookups counted between the two sets land in the new second
+            slotHits.set(index, 0);
+            slotMisses.set(index, 0);
+        }
+        return index;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
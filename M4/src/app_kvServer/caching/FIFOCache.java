@@ -1,53 +1,105 @@
 package app_kvServer.caching;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class FIFOCache implements Cache{
 
-    private int cacheSize;
+    private long capacity;
+
+    private final Weigher weigher;
+
+    private long weight;
+
+    private long evictions;
 
     private LinkedHashMap<String, String> cache;
 
     public FIFOCache(int cacheSize) {
-        this.cacheSize = cacheSize;
-//        this.cache = LinkedHashMap.newLinkedHashMap(cacheSize);
+        this(cacheSize, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param capacity total weight of the cached entries
+     */
+    public FIFOCache(long capacity, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.cache = new LinkedHashMap<>();
     }
     @Override
-    public boolean inCache(String key) {
+    public synchronized boolean inCache(String key) {
         return cache.containsKey(key);
     }
 
     @Override
-    public String get(String key) {
+    public synchronized String get(String key) {
         return cache.get(key);
     }
 
     @Override
-    public boolean put(String key, String val) {
-        if(cache.containsKey(key))
-        {
-            cache.replace(key, val);
+    public synchronized boolean put(String key, String val) {
+        int added = weigher.weigh(key, val);
+        String previous = cache.get(key);
+        if (previous != null) {
+            weight -= weigher.weigh(key, previous);
+        }
+        if (added > this.capacity) {
+            // too large to ever fit, also drop the old value
+            cache.remove(key);
             return true;
         }
-        else if(cache.size() == this.cacheSize)
-        {
+        // replacing a value keeps the key's place in the queue
+        cache.put(key, val);
+        weight += added;
+        while (weight > this.capacity) {
             evict();
         }
-        cache.put(key,val);
         return true;
     }
 
     @Override
-    public void clear() {
-//        this.cache = LinkedHashMap.newLinkedHashMap(cacheSize);
+    public synchronized void remove(String key) {
+        String value = cache.remove(key);
+        if (value != null) {
+            weight -= weigher.weigh(key, value);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        cache.clear();
+        weight = 0;
     }
 
     @Override
-    public void evict() {
+    public synchronized List<String> hottestKeys(int max) {
+        // newest first, they stay the longest
+        List<String> keys = new ArrayList<>(cache.keySet());
+        Collections.reverse(keys);
+        return new ArrayList<>(keys.subList(0, Math.min(max, keys.size())));
+    }
+
+    @Override
+    public synchronized void evict() {
+        if (cache.isEmpty()) {
+            return;
+        }
         Map.Entry<String, String> entry = cache.entrySet().iterator().next();
-        cache.remove(entry.getKey());
+        remove(entry.getKey());
+        evictions++;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictions;
     }
 }
@@ -0,0 +1,116 @@
+package app_kvServer.caching;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch estimating how often each key was seen recently, in four
+ * bits per counter. Every counter is halved once the sketch has recorded ten
+ * times as many accesses as it has counters per row, so the estimates favour
+ * recent popularity and stay below the 15 a counter can hold.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int[] SEEDS = {0x97cb3127, 0x5a3e1f8b, 0x2c9a4d5f, 0x61c88647};
+
+    /** Counters per row, a power of two. */
+    private final int width;
+
+    /** DEPTH rows of width counters, 16 counters per long. */
+    private final long[] table;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param capacity number of keys the cache holds, sizes the sketch
+     */
+    public FrequencySketch(int capacity) {
+        int width = 16;
+        while (width < capacity && width < (1 << 28)) {
+            width <<= 1;
+        }
+        this.width = width;
+        this.table = new long[DEPTH * width / 16];
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * @return the estimated number of recent accesses to the key, at most 15
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counter(indexOf(hash, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access to the key. Only the counters holding the current
+     * estimate are incremented, which keeps collisions from inflating it.
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        int[] indexes = new int[DEPTH];
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            indexes[row] = indexOf(hash, row);
+            frequency = Math.min(frequency, counter(indexes[row]));
+        }
+        if (frequency == MAX_COUNT) {
+            return;
+        }
+        for (int index : indexes) {
+            if (counter(index) == frequency) {
+                table[index >>> 4] += 1L << ((index & 15) << 2);
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves every counter.
+     */
+    public void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0L);
+        additions = 0;
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private int counter(int index) {
+        return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        hash *= 0xac4c1b51;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+}
@@ -1,52 +1,294 @@
 package app_kvServer.caching;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
+/**
+ * Least frequently used cache with constant time get, put and eviction.
+ * <p>
+ * Keys with the same use count share a bucket, and the buckets form a list
+ * ordered by count, so a hit moves its key to the neighbouring bucket and
+ * eviction takes the oldest key of the first bucket. Ties are therefore
+ * broken by recency.
+ * <p>
+ * Counts are halved every AGING_PERIOD &times; expectedKeys accesses, so
+ * keys that were hot a while ago do not stay cached forever.
+ * <p>
+ * The capacity is counted by a {@link Weigher}, in entries or in bytes.
+ */
 public class LFUCache implements Cache{
 
-    private int cacheSize;
+    private static final int AGING_PERIOD = 8;
 
-    private HashMap<String, String> cache;
-    private HashMap<String, Integer> frequency;
+    private final long capacity;
+
+    private final Weigher weigher;
+
+    private long weight;
+
+    private final HashMap<String, Node> nodes = new HashMap<>();
+
+    /** Bucket with the lowest count, or null if the cache is empty. */
+    private Bucket lowest;
+
+    private long accesses;
+
+    private long evictions;
+
+    private final long agingInterval;
 
     public LFUCache(int cacheSize) {
-        this.cacheSize = cacheSize;
-//        this.cache = HashMap.newHashMap(cacheSize);
+        this(cacheSize, Weigher.ENTRIES, cacheSize);
     }
+
+    /**
+     * @param capacity     total weight of the cached entries
+     * @param expectedKeys roughly how many keys fit, sets the aging period
+     */
+    public LFUCache(long capacity, Weigher weigher, int expectedKeys) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.agingInterval = Math.max(1L, (long) expectedKeys * AGING_PERIOD);
+    }
+
     @Override
-    public boolean inCache(String key) {
-        return cache.containsKey(key);
+    public synchronized boolean inCache(String key) {
+        return nodes.containsKey(key);
     }
 
     @Override
-    public String get(String key) {
-        frequency.replace(key, frequency.get(key) + 1);
-        return cache.get(key);
+    public synchronized String get(String key) {
+        Node node = nodes.get(key);
+        if (node == null) {
+            return null;
+        }
+        touch(node);
+        return node.value;
     }
 
     @Override
-    public boolean put(String key, String val) {
-        if(cache.containsKey(key))
-        {
-            frequency.replace(key, frequency.get(key));
-            cache.replace(key, val);
+    public synchronized boolean put(String key, String val) {
+        int added = weigher.weigh(key, val);
+        Node node = nodes.get(key);
+        if (node != null) {
+            weight += added - weigher.weigh(key, node.value);
+            node.value = val;
+            touch(node);
+            while (weight > capacity) {
+                evict();
+            }
             return true;
         }
-        else if(cache.size() == this.cacheSize)
-        {
+        if (added > capacity) {
+            return true;
+        }
+        while (weight + added > capacity) {
             evict();
         }
-        cache.put(key,val);
+        weight += added;
+        node = new Node(key, val);
+        nodes.put(key, node);
+        if (lowest == null || lowest.count != 1) {
+            lowest = insertBucketAfter(null, 1);
+        }
+        lowest.append(node);
         return true;
     }
 
     @Override
-    public void clear() {
+    public synchronized void remove(String key) {
+        Node node = nodes.remove(key);
+        if (node != null) {
+            weight -= weigher.weigh(key, node.value);
+            unlink(node);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        nodes.clear();
+        lowest = null;
+        accesses = 0;
+        weight = 0;
+    }
+
+    /**
+     * Evicts the least recently used of the least frequently used keys.
+     */
+    @Override
+    public synchronized void evict() {
+        if (lowest != null) {
+            remove(lowest.head.key);
+            evictions++;
+        }
+    }
 
+    @Override
+    public synchronized long getWeight() {
+        return weight;
     }
 
     @Override
-    public void evict() {
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
 
+    /**
+     * Most frequently used first, ties most recently used first.
+     */
+    @Override
+    public synchronized List<String> hottestKeys(int max) {
+        List<String> keys = new ArrayList<>();
+        Bucket highest = lowest;
+        while (highest != null && highest.next != null) {
+            highest = highest.next;
+        }
+        for (Bucket bucket = highest; bucket != null && keys.size() < max; bucket = bucket.prev) {
+            for (Node node = bucket.tail; node != null && keys.size() < max; node = node.prev) {
+                keys.add(node.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return how often the key was used since it was cached, after aging,
+     *      or 0 if it is not cached
+     */
+    public synchronized int getFrequency(String key) {
+        Node node = nodes.get(key);
+        return node == null ? 0 : node.bucket.count;
+    }
+
+    //////////////////// BUCKETS ////////////////////
+
+    /**
+     * Moves the node to the bucket one count higher, creating it if needed.
+     */
+    private void touch(Node node) {
+        Bucket bucket = node.bucket;
+        Bucket next = bucket.next;
+        if (next == null || next.count != bucket.count + 1) {
+            next = insertBucketAfter(bucket, bucket.count + 1);
+        }
+        unlink(node);
+        next.append(node);
+        if (++accesses >= agingInterval) {
+            age();
+        }
+    }
+
+    /**
+     * Halves every count. Buckets whose counts become equal are merged, the
+     * older keys first, so the order of the buckets and within them is kept.
+     */
+    private void age() {
+        accesses = 0;
+        Bucket oldLowest = lowest;
+        lowest = null;
+        Bucket tail = null;
+        for (Bucket bucket = oldLowest; bucket != null; bucket = bucket.next) {
+            int count = Math.max(1, bucket.count / 2);
+            if (tail == null || tail.count != count) {
+                tail = insertBucketAfter(tail, count);
+            }
+            Node node = bucket.head;
+            while (node != null) {
+                Node next = node.next;
+                tail.append(node);
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * @param previous bucket to insert after, or null to insert at the front
+     */
+    private Bucket insertBucketAfter(Bucket previous, int count) {
+        Bucket bucket = new Bucket(count);
+        bucket.prev = previous;
+        if (previous == null) {
+            bucket.next = lowest;
+            lowest = bucket;
+        } else {
+            bucket.next = previous.next;
+            previous.next = bucket;
+        }
+        if (bucket.next != null) {
+            bucket.next.prev = bucket;
+        }
+        return bucket;
+    }
+
+    /**
+     * Removes the node from its bucket, and the bucket from the list if it
+     * is left empty.
+     */
+    private void unlink(Node node) {
+        Bucket bucket = node.bucket;
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            bucket.head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        } else {
+            bucket.tail = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.bucket = null;
+        if (bucket.head == null) {
+            if (bucket.prev != null) {
+                bucket.prev.next = bucket.next;
+            } else if (lowest == bucket) {
+                lowest = bucket.next;
+            }
+            if (bucket.next != null) {
+                bucket.next.prev = bucket.prev;
+            }
+        }
+    }
+
+    private static class Node {
+        private final String key;
+        private String value;
+        private Bucket bucket;
+        private Node prev;
+        private Node next;
+
+        Node(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Keys used {@code count} times, least recently used first.
+     */
+    private static class Bucket {
+        private final int count;
+        private Node head;
+        private Node tail;
+        private Bucket prev;
+        private Bucket next;
+
+        Bucket(int count) {
+            this.count = count;
+        }
+
+        void append(Node node) {
+            node.bucket = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+        }
     }
 }
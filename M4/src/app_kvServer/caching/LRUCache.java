@@ -1,33 +1,228 @@
 package app_kvServer.caching;
 
-public class LRUCache implements Cache{
-    private int cacheSize;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Least recently used cache, split into independently locked segments by
+ * key hash so client threads working on different keys do not wait for each
+ * other. Each segment evicts its own least recently used key, which closely
+ * approximates a global LRU once the segments hold more than a few keys.
+ * <p>
+ * The capacity is split evenly over the segments and counted by a
+ * {@link Weigher}, in entries or in bytes.
+ */
+public class LRUCache implements Cache {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /** Segments are only added while each would still hold this many keys. */
+    private static final int MIN_SEGMENT_SIZE = 8;
+
+    /** The same for a memory budget, enough for a few of the largest values. */
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+    private final long capacity;
+
+    private final Weigher weigher;
+
+    private final Segment[] segments;
 
     public LRUCache(int cacheSize) {
-        this.cacheSize = cacheSize;
+        this(cacheSize, Weigher.ENTRIES);
+    }
+
+    /**
+     * @param capacity total weight of the cached entries
+     */
+    public LRUCache(long capacity, Weigher weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        long minSegment = weigher == Weigher.ENTRIES ? MIN_SEGMENT_SIZE : MIN_SEGMENT_BYTES;
+        int count = 1;
+        while (count < MAX_SEGMENTS && capacity / (count * 2) >= minSegment) {
+            count *= 2;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // spread the remainder so the capacities add up to the total
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
     }
+
     @Override
     public boolean inCache(String key) {
-        return false;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.entries.containsKey(key);
+        }
     }
 
     @Override
     public String get(String key) {
-        return null;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.entries.get(key);
+        }
     }
 
     @Override
     public boolean put(String key, String val) {
-        return false;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.add(key, val);
+        }
+        return true;
+    }
+
+    @Override
+    public void remove(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.drop(key);
+        }
     }
 
     @Override
     public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.reset();
+            }
+        }
+    }
+
+    /**
+     * Most recently used first, taking from each segment in turn.
+     */
+    @Override
+    public List<String> hottestKeys(int max) {
+        List<ListIterator<String>> recent = new ArrayList<>();
+        for (Segment segment : segments) {
+            List<String> keys;
+            synchronized (segment) {
+                keys = new ArrayList<>(segment.entries.keySet());
+            }
+            recent.add(keys.listIterator(keys.size()));
+        }
+        return interleave(recent, max);
+    }
 
+    /**
+     * @param sources each walked backwards, from its hottest key
+     */
+    static List<String> interleave(List<ListIterator<String>> sources, int max) {
+        List<String> keys = new ArrayList<>();
+        boolean more = true;
+        while (more && keys.size() < max) {
+            more = false;
+            for (ListIterator<String> source : sources) {
+                if (source.hasPrevious() && keys.size() < max) {
+                    keys.add(source.previous());
+                    more = true;
+                }
+            }
+        }
+        return keys;
     }
 
+    /**
+     * Evicts the least recently used key of the fullest segment.
+     */
     @Override
     public void evict() {
+        Segment fullest = segments[0];
+        for (Segment segment : segments) {
+            if (segment.weight > fullest.weight) {
+                fullest = segment;
+            }
+        }
+        synchronized (fullest) {
+            fullest.evictEldest();
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                evictions += segment.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        // mix the high bits in, String hashes of similar keys differ mostly in the low bits
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Access ordered map that drops its eldest entries once it is over
+     * capacity. Entries heavier than the whole segment are not cached.
+     */
+    private class Segment {
+        private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private long weight;
+        private long evictions;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(String key, String value) {
+            int added = weigher.weigh(key, value);
+            drop(key);
+            if (added > capacity) {
+                return;
+            }
+            entries.put(key, value);
+            weight += added;
+            while (weight > capacity) {
+                evictEldest();
+            }
+        }
+
+        void drop(String key) {
+            String value = entries.remove(key);
+            if (value != null) {
+                weight -= weigher.weigh(key, value);
+            }
+        }
+
+        void evictEldest() {
+            if (!entries.isEmpty()) {
+                drop(entries.keySet().iterator().next());
+                evictions++;
+            }
+        }
 
+        void reset() {
+            entries.clear();
+            weight = 0;
+        }
     }
 }
@@ -0,0 +1,52 @@
+package app_kvServer.caching;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers keys recently found missing from storage, so repeated GETs and
+ * DELETEs of keys that do not exist are answered without probing the
+ * storage engine. Holds at most {@code capacity} keys, dropping the least
+ * recently used. Whoever stores a key must {@link #remove(String)} it.
+ */
+public class NegativeCache {
+
+    private final int capacity;
+
+    private final LinkedHashMap<String, Boolean> keys;
+
+    public NegativeCache(final int capacity) {
+        this.capacity = capacity;
+        this.keys = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if the key was recently found missing and not stored since
+     */
+    public synchronized boolean contains(String key) {
+        return keys.get(key) != null;
+    }
+
+    public synchronized void add(String key) {
+        if (capacity > 0) {
+            keys.put(key, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void remove(String key) {
+        keys.remove(key);
+    }
+
+    public synchronized void clear() {
+        keys.clear();
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+}
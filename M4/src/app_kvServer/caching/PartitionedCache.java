@@ -0,0 +1,263 @@
+package app_kvServer.caching;
+
+import app_kvServer.persistence.Storage;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * Cache split into partitions by the leading bits of the key's md5 hash, so
+ * each partition covers a fixed slice of the hash ring. When the server's
+ * range changes, partitions entirely outside the new range are replaced by
+ * empty ones instead of being searched key by key. Only the at most two
+ * partitions cut by a range boundary are searched, for the keys to drop, and
+ * check each key against the range from then on, so a key the server is no
+ * longer responsible for is never served or cached.
+ */
+public class PartitionedCache implements Cache {
+
+    /**
+     * Creates the cache of one partition.
+     */
+    public interface Factory {
+        public Cache create(long capacity);
+    }
+
+    private static final int MAX_PARTITIONS = 256;
+
+    private static final byte IN_RANGE = 0;
+    private static final byte PARTIAL = 1;
+    private static final byte OUT_OF_RANGE = 2;
+
+    private final Factory factory;
+
+    private final long partitionCapacity;
+
+    /** log2 of the partition count, at most 8 so a partition is picked by the first hash byte. */
+    private final int bits;
+
+    /** Replaced as a whole on range changes, together with the range. */
+    private volatile Layout layout;
+
+    private int evictCursor;
+
+    /** Evictions counted by partitions since replaced in {@link #setRange}. */
+    private long retiredEvictions;
+
+    /**
+     * @param capacity          total capacity, split evenly over the partitions
+     * @param minPartition      partitions are only added while each keeps at
+     *                          least this much capacity
+     */
+    public PartitionedCache(long capacity, long minPartition, Factory factory) {
+        this.factory = factory;
+        int bits = 0;
+        while ((1 << bits) < MAX_PARTITIONS && capacity / (2L << bits) >= minPartition) {
+            bits++;
+        }
+        this.bits = bits;
+        this.partitionCapacity = capacity >> bits;
+        Cache[] partitions = new Cache[1 << bits];
+        byte[] states = new byte[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = factory.create(partitionCapacity);
+        }
+        this.layout = new Layout(partitions, states, null, null);
+    }
+
+    @Override
+    public boolean inCache(String key) {
+        Layout current = layout;
+        Cache partition = responsiblePartition(current, key);
+        return partition != null && partition.inCache(key);
+    }
+
+    @Override
+    public String get(String key) {
+        Layout current = layout;
+        Cache partition = responsiblePartition(current, key);
+        return partition == null ? null : partition.get(key);
+    }
+
+    /**
+     * Keys outside the server's range are not cached.
+     */
+    @Override
+    public boolean put(String key, String val) {
+        Layout current = layout;
+        Cache partition = responsiblePartition(current, key);
+        if (partition != null) {
+            partition.put(key, val);
+        }
+        return true;
+    }
+
+    @Override
+    public void remove(String key) {
+        Layout current = layout;
+        current.partitions[partitionOf(DigestUtils.md5Hex(key))].remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Cache partition : layout.partitions) {
+            partition.clear();
+        }
+    }
+
+    /**
+     * Takes from each partition in turn, as the partitions split the keys
+     * evenly.
+     */
+    @Override
+    public List<String> hottestKeys(int max) {
+        Cache[] partitions = layout.partitions;
+        // enough from each partition to fill max even if some are nearly empty
+        int perPartition = Math.min(max, 2 * (max / partitions.length + 1));
+        List<ListIterator<String>> sources = new ArrayList<>();
+        for (Cache partition : partitions) {
+            List<String> keys = partition.hottestKeys(perPartition);
+            // interleave walks backwards, from the hottest key
+            Collections.reverse(keys);
+            sources.add(keys.listIterator(keys.size()));
+        }
+        return LRUCache.interleave(sources, max);
+    }
+
+    /**
+     * Evicts from the partitions in turn.
+     */
+    @Override
+    public synchronized void evict() {
+        Cache[] partitions = layout.partitions;
+        evictCursor = (evictCursor + 1) % partitions.length;
+        partitions[evictCursor].evict();
+    }
+
+    /**
+     * Adapts the cache to the server now being responsible for
+     * (lowerRange, upperRange]. Costs one step per partition, plus the keys
+     * of the at most two partitions cut by a range boundary.
+     *
+     * @return the number of partitions dropped
+     */
+    public synchronized int setRange(String lowerRange, String upperRange) {
+        Layout current = layout;
+        Cache[] partitions = current.partitions.clone();
+        byte[] states = new byte[partitions.length];
+        int dropped = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            states[i] = classify(i, lowerRange, upperRange);
+            if (states[i] == OUT_OF_RANGE && current.states[i] != OUT_OF_RANGE) {
+                retiredEvictions += partitions[i].getEvictionCount();
+                partitions[i] = factory.create(partitionCapacity);
+                dropped++;
+            }
+        }
+        layout = new Layout(partitions, states, lowerRange, upperRange);
+        for (int i = 0; i < partitions.length; i++) {
+            if (states[i] == PARTIAL) {
+                // otherwise the keys would be served with stale values if the range grows back
+                dropOutsideRange(partitions[i], lowerRange, upperRange);
+            }
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getWeight() {
+        long weight = 0;
+        for (Cache partition : layout.partitions) {
+            weight += partition.getWeight();
+        }
+        return weight;
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        long evictions = retiredEvictions;
+        for (Cache partition : layout.partitions) {
+            evictions += partition.getEvictionCount();
+        }
+        return evictions;
+    }
+
+    public int getPartitionCount() {
+        return layout.partitions.length;
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * @return the partition of the key, or null if the server is not
+     *      responsible for the key
+     */
+    private Cache responsiblePartition(Layout current, String key) {
+        String hash = DigestUtils.md5Hex(key);
+        int index = partitionOf(hash);
+        byte state = current.states[index];
+        if (state == OUT_OF_RANGE) {
+            return null;
+        }
+        if (state == PARTIAL && !Storage.isHashInRange(hash, current.lowerRange, current.upperRange)) {
+            return null;
+        }
+        return current.partitions[index];
+    }
+
+    private static void dropOutsideRange(Cache partition, String lowerRange, String upperRange) {
+        for (String key : partition.hottestKeys(Integer.MAX_VALUE)) {
+            if (!Storage.isHashInRange(DigestUtils.md5Hex(key), lowerRange, upperRange)) {
+                partition.remove(key);
+            }
+        }
+    }
+
+    private int partitionOf(String hash) {
+        int firstByte = Integer.parseInt(hash.substring(0, 2), 16);
+        return firstByte >>> (8 - bits);
+    }
+
+    /**
+     * Partition i holds the hashes from {@code first} to {@code last}. Walking
+     * the ring forward from first, membership of the range only changes when
+     * passing the upper bound (leaving it) or the lower bound (entering it).
+     */
+    private byte classify(int partition, String lowerRange, String upperRange) {
+        int width = 256 >> bits;
+        String first = bound(partition * width, '0');
+        String last = bound((partition + 1) * width - 1, 'f');
+        if (Storage.isHashInRange(first, lowerRange, upperRange)) {
+            boolean leaves = upperRange.compareTo(first) >= 0 && upperRange.compareTo(last) < 0;
+            return leaves ? PARTIAL : IN_RANGE;
+        }
+        boolean enters = lowerRange.compareTo(first) >= 0 && lowerRange.compareTo(last) < 0;
+        return enters ? PARTIAL : OUT_OF_RANGE;
+    }
+
+    private static String bound(int firstByte, char fill) {
+        StringBuilder hash = new StringBuilder(32);
+        hash.append(String.format("%02x", firstByte));
+        while (hash.length() < 32) {
+            hash.append(fill);
+        }
+        return hash.toString();
+    }
+
+    private static class Layout {
+        private final Cache[] partitions;
+        private final byte[] states;
+        private final String lowerRange;
+        private final String upperRange;
+
+        Layout(Cache[] partitions, byte[] states, String lowerRange, String upperRange) {
+            this.partitions = partitions;
+            this.states = states;
+            this.lowerRange = lowerRange;
+            this.upperRange = upperRange;
+        }
+    }
+}
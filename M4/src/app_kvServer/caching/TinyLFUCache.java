@@ -0,0 +1,268 @@
+package app_kvServer.caching;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU cache. New keys enter a small LRU window. Keys pushed out of
+ * the window only move on to the main region if a {@link FrequencySketch}
+ * says they are used more often than the key the main region would evict,
+ * so one-off lookups and scans such as bulk exports pass through the window
+ * without flushing the popular keys.
+ * <p>
+ * The main region is a segmented LRU: admitted keys start in probation and
+ * move to the protected segment when they are hit again. The window holds 1%
+ * of the capacity and the protected segment 80% of the rest. The capacity is
+ * counted by a {@link Weigher}, in entries or in bytes.
+ */
+public class TinyLFUCache implements Cache {
+
+    private static final int WINDOW_PERCENT = 1;
+
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final long capacity;
+
+    private final Weigher weigher;
+
+    private final Region window;
+
+    private final Region probation;
+
+    private final Region protectedKeys;
+
+    /** Capacity of probation and protected together. */
+    private final long mainCapacity;
+
+    private final FrequencySketch sketch;
+
+    private long evictions;
+
+    public TinyLFUCache(int cacheSize) {
+        this(cacheSize, Weigher.ENTRIES, cacheSize);
+    }
+
+    /**
+     * @param capacity     total weight of the cached entries
+     * @param expectedKeys roughly how many keys fit, sizes the frequency sketch
+     */
+    public TinyLFUCache(long capacity, Weigher weigher, int expectedKeys) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        long windowCapacity = Math.max(Math.min(capacity, 1), capacity * WINDOW_PERCENT / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.window = new Region(windowCapacity);
+        this.probation = new Region(mainCapacity);
+        this.protectedKeys = new Region(mainCapacity * PROTECTED_PERCENT / 100);
+        this.sketch = new FrequencySketch(expectedKeys);
+    }
+
+    @Override
+    public synchronized boolean inCache(String key) {
+        return window.entries.containsKey(key) || probation.entries.containsKey(key) || protectedKeys.entries.containsKey(key);
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        // a miss is counted by the put that caches the value read from storage
+        return access(key, null);
+    }
+
+    @Override
+    public synchronized boolean put(String key, String val) {
+        if (access(key, val) != null) {
+            return true;
+        }
+        sketch.increment(key);
+        if (weigher.weigh(key, val) > capacity) {
+            return true;
+        }
+        window.add(key, val);
+        while (window.weight > window.capacity) {
+            admit(window.removeEldest());
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (window.drop(key) == null && probation.drop(key) == null) {
+            protectedKeys.drop(key);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        window.reset();
+        probation.reset();
+        protectedKeys.reset();
+        sketch.clear();
+    }
+
+    /**
+     * Protected keys first, then probation, then the window, each most
+     * recently used first.
+     */
+    @Override
+    public synchronized List<String> hottestKeys(int max) {
+        List<String> keys = new ArrayList<>();
+        for (Region region : new Region[]{protectedKeys, probation, window}) {
+            List<String> regionKeys = new ArrayList<>(region.entries.keySet());
+            for (int i = regionKeys.size() - 1; i >= 0 && keys.size() < max; i--) {
+                keys.add(regionKeys.get(i));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Evicts from probation first, as those keys were hit the least since
+     * they were admitted.
+     */
+    @Override
+    public synchronized void evict() {
+        if (!probation.entries.isEmpty()) {
+            probation.removeEldest();
+        } else if (!window.entries.isEmpty()) {
+            window.removeEldest();
+        } else if (!protectedKeys.entries.isEmpty()) {
+            protectedKeys.removeEldest();
+        } else {
+            return;
+        }
+        evictions++;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return window.weight + mainWeight();
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * Records a hit on the key, promoting it from probation to protected.
+     *
+     * @param value new value for the key, or null to keep the current one
+     * @return the key's value after the update, or null if it is not cached
+     */
+    private String access(String key, String value) {
+        Region region = window.entries.containsKey(key) ? window
+                : protectedKeys.entries.containsKey(key) ? protectedKeys
+                : probation.entries.containsKey(key) ? probation : null;
+        if (region == null) {
+            return null;
+        }
+        sketch.increment(key);
+        if (value == null) {
+            value = region.entries.get(key);
+        }
+        if (region == probation) {
+            probation.drop(key);
+            region = protectedKeys;
+        }
+        region.add(key, value);
+        while (protectedKeys.weight > protectedKeys.capacity) {
+            Map.Entry<String, String> demoted = protectedKeys.removeEldest();
+            probation.add(demoted.getKey(), demoted.getValue());
+        }
+        shrinkMain();
+        if (window.weight > window.capacity) {
+            // a larger value pushed the window over, the new value stays
+            while (window.weight > window.capacity && window.entries.size() > 1) {
+                admit(window.removeEldest());
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Moves a key pushed out of the window into probation, evicting the
+     * least recently used main keys while the main region is full and the
+     * candidate is used more often than them. Otherwise the candidate is
+     * dropped.
+     */
+    private void admit(Map.Entry<String, String> candidate) {
+        long needed = weigher.weigh(candidate.getKey(), candidate.getValue());
+        if (needed > mainCapacity) {
+            evictions++;
+            return;
+        }
+        int frequency = sketch.frequency(candidate.getKey());
+        while (mainWeight() + needed > mainCapacity) {
+            Region victims = probation.entries.isEmpty() ? protectedKeys : probation;
+            String victim = victims.entries.keySet().iterator().next();
+            evictions++;
+            if (frequency <= sketch.frequency(victim)) {
+                return;
+            }
+            victims.drop(victim);
+        }
+        probation.add(candidate.getKey(), candidate.getValue());
+    }
+
+    private long mainWeight() {
+        return probation.weight + protectedKeys.weight;
+    }
+
+    /**
+     * Evicts from probation, then protected, after an update grew the main
+     * region past its capacity.
+     */
+    private void shrinkMain() {
+        while (mainWeight() > mainCapacity) {
+            evictions++;
+            if (!probation.entries.isEmpty()) {
+                probation.removeEldest();
+            } else {
+                protectedKeys.removeEldest();
+            }
+        }
+    }
+
+    /**
+     * Access ordered segment of the cache that tracks the weight of its
+     * entries. Iteration starts at the least recently used key.
+     */
+    private class Region {
+        private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private long weight;
+
+        Region(long capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(String key, String value) {
+            drop(key);
+            entries.put(key, value);
+            weight += weigher.weigh(key, value);
+        }
+
+        String drop(String key) {
+            String value = entries.remove(key);
+            if (value != null) {
+                weight -= weigher.weigh(key, value);
+            }
+            return value;
+        }
+
+        Map.Entry<String, String> removeEldest() {
+            String key = entries.keySet().iterator().next();
+            return new AbstractMap.SimpleImmutableEntry<>(key, drop(key));
+        }
+
+        void reset() {
+            entries.clear();
+            weight = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package app_kvServer.caching;
+
+/**
+ * Weight of a cached key-value pair. A cache evicts until the total weight of
+ * its entries fits its capacity, so the weigher decides whether the capacity
+ * counts entries or bytes.
+ */
+public interface Weigher {
+
+    /**
+     * Every entry weighs 1, the capacity is a number of entries.
+     */
+    public static final Weigher ENTRIES = new Weigher() {
+        @Override
+        public int weigh(String key, String value) {
+            return 1;
+        }
+    };
+
+    /**
+     * Entries weigh their estimated heap footprint in bytes.
+     */
+    public static final Weigher BYTES = new Weigher() {
+        /** Map entry, list links and bookkeeping of the cache. */
+        private static final int ENTRY_OVERHEAD = 64;
+
+        /** String object plus the header of its backing array. */
+        private static final int STRING_OVERHEAD = 40;
+
+        @Override
+        public int weigh(String key, String value) {
+            return ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value);
+        }
+
+        /**
+         * Strings with only Latin-1 characters take one byte per character,
+         * others two.
+         */
+        private int sizeOf(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) > 0xFF) {
+                    return STRING_OVERHEAD + 2 * s.length();
+                }
+            }
+            return STRING_OVERHEAD + s.length();
+        }
+    };
+
+    /**
+     * Must return the same weight for the same pair every time, caches
+     * recompute it instead of storing it.
+     */
+    public int weigh(String key, String value);
+}
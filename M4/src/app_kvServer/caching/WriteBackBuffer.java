@@ -0,0 +1,103 @@
+package app_kvServer.caching;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes acknowledged to clients but not yet stored, for the write-back
+ * cache mode. Each key holds only its latest value, so repeated updates
+ * between two flushes cost one storage write.
+ * <p>
+ * A flush moves a batch of keys from dirty to flushing and hands it to the
+ * caller to store. Lookups check both, so a key never disappears between
+ * leaving the buffer and reaching storage.
+ */
+public class WriteBackBuffer {
+
+    /**
+     * Pending value of a deleted key. Always compared by identity.
+     */
+    public static final String DELETED = new String("<deleted>");
+
+    /** Insertion ordered, so the oldest writes are flushed first. */
+    private final LinkedHashMap<String, String> dirty = new LinkedHashMap<>();
+
+    private final HashMap<String, String> flushing = new HashMap<>();
+
+    public synchronized void put(String key, String value) {
+        // re-inserted, the key is as old as its newest write
+        dirty.remove(key);
+        dirty.put(key, value);
+    }
+
+    public synchronized void delete(String key) {
+        dirty.remove(key);
+        dirty.put(key, DELETED);
+    }
+
+    /**
+     * @return the pending value of the key, {@link #DELETED}, or null if
+     *      storage is up to date for the key
+     */
+    public synchronized String get(String key) {
+        String value = dirty.get(key);
+        return value != null ? value : flushing.get(key);
+    }
+
+    /**
+     * @return the number of keys that are not yet stored
+     */
+    public synchronized int size() {
+        return dirty.size() + flushing.size();
+    }
+
+    /**
+     * Takes up to {@code maxKeys} of the oldest dirty keys for storing. They
+     * stay visible to {@link #get(String)} until {@link #endFlush(Map, boolean)}.
+     *
+     * @return the keys and their pending values, empty if nothing is dirty
+     */
+    public synchronized Map<String, String> beginFlush(int maxKeys) {
+        Map<String, String> batch = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, String>> entries = dirty.entrySet().iterator();
+        while (entries.hasNext() && batch.size() < maxKeys) {
+            Map.Entry<String, String> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+            flushing.put(entry.getKey(), entry.getValue());
+            entries.remove();
+        }
+        return batch;
+    }
+
+    /**
+     * @param stored false if the batch could not be stored, its keys are
+     *               marked dirty again unless they were written since
+     */
+    public synchronized void endFlush(Map<String, String> batch, boolean stored) {
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            String key = entry.getKey();
+            if (flushing.get(key) == entry.getValue()) {
+                flushing.remove(key);
+            }
+            if (!stored && !dirty.containsKey(key)) {
+                dirty.put(key, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Forget the pending writes of a key, e.g. because transferred data
+     * replaces it.
+     */
+    public synchronized void discard(String key) {
+        dirty.remove(key);
+        flushing.remove(key);
+    }
+
+    public synchronized void clear() {
+        dirty.clear();
+        flushing.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package app_kvServer.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over the keys of one {@link SSTable}. A negative answer means
+ * the key is certainly not in the table, so the table file is never touched.
+ *
+ * File layout: [magic (4)][hash count (4)][word count (4)][words (8 each)]
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x424C4F4D;
+
+    private final long[] words;
+    private final int hashCount;
+
+    /**
+     * @param expectedKeys      number of keys the filter is sized for
+     * @param falsePositiveRate wanted probability of a false positive, e.g. 0.01
+     */
+    public BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int keys = Math.max(1, expectedKeys);
+        double rate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        long bits = (long) Math.ceil(-keys * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        this.words = new long[(int) Math.max(1, Math.min(Integer.MAX_VALUE, (bits + 63) / 64))];
+        this.hashCount = Math.max(1, (int) Math.round((double) words.length * 64 / keys * Math.log(2)));
+    }
+
+    private BloomFilter(long[] words, int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        long bits = (long) words.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        long bits = (long) words.length * 64;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(File file) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashCount);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    public static BloomFilter readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Corrupt bloom filter file " + file.getName());
+            }
+            int hashCount = in.readInt();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BloomFilter(words, hashCount);
+        }
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /** 64-bit FNV-1a over the UTF-8 bytes of the key. */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /** MurmurHash3 finalizer, spreads the FNV hash over all 64 bits. */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,88 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * {@link ICompressionCodec} backed by java.util.zip. Deflaters and inflaters
+ * hold native memory, so each thread reuses its own instead of creating one
+ * per value.
+ */
+public class DeflateCodec implements ICompressionCodec {
+
+    private final ThreadLocal<Deflater> deflater;
+
+    private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    public DeflateCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level compression level, 1 (fastest) to 9 (smallest)
+     */
+    public DeflateCodec(final int level) {
+        this.deflater = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level, true);
+            }
+        };
+    }
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] raw) {
+        Deflater deflater = this.deflater.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[raw.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public byte[] decompress(byte[] compressed, int rawLength) throws IOException {
+        Inflater inflater = this.inflater.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int length = 0;
+            while (length < rawLength) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed value is truncated");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed value is corrupt", e);
+        }
+        return raw;
+    }
+}
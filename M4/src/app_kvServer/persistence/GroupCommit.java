@@ -0,0 +1,171 @@
+package app_kvServer.persistence;
+
+import app_kvServer.persistence.WriteAheadLog.SyncMode;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the appends to a log durable according to a {@link SyncMode}. Every
+ * append gets a ticket, its position in the sequence of bytes ever appended,
+ * which the writer passes to {@link #sync(long)} once it has released its
+ * own locks.
+ *
+ * Group commit: the first writer to find no fsync running becomes the
+ * leader and fsyncs everything appended so far. Writers arriving in the
+ * meantime wait and are covered by that fsync or the leader after it.
+ */
+abstract class GroupCommit {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final ScheduledExecutorService syncTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "wal-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final String name;
+    private final SyncMode mode;
+    private final ScheduledFuture<?> syncTask;
+
+    /** A lock rather than a monitor, so waiting writers do not pin the carriers of virtual threads. */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private final Condition syncDone = syncLock.newCondition();
+
+    /** Every ticket up to here is durable. Guarded by syncLock. */
+    private long synced;
+
+    /** An fsync is running. Guarded by syncLock. */
+    private boolean syncing;
+
+    /**
+     * @param name   of the log, for error messages
+     * @param synced tickets up to here are durable already
+     */
+    GroupCommit(String name, SyncMode mode, long syncIntervalMillis, long synced) {
+        this.name = name;
+        this.mode = mode;
+        this.synced = synced;
+        if (mode == SyncMode.INTERVAL) {
+            this.syncTask = syncTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        syncTo(appended());
+                    } catch (IOException e) {
+                        logger.error("Unable to sync " + GroupCommit.this.name, e);
+                    }
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncTask = null;
+        }
+    }
+
+    /**
+     * @return the ticket of the latest append
+     */
+    protected abstract long appended();
+
+    /**
+     * Fsyncs at least every append up to the ticket {@link #appended()}
+     * returned before the call.
+     */
+    protected abstract void force() throws IOException;
+
+    /**
+     * With {@link SyncMode#EVERY_BATCH}, blocks until the append behind the
+     * ticket has been fsynced. Returns at once in the other modes.
+     */
+    void sync(long ticket) throws IOException {
+        if (mode == SyncMode.EVERY_BATCH) {
+            syncTo(ticket);
+        }
+    }
+
+    /**
+     * Waits for every append so far, see {@link #sync(long)}.
+     */
+    void syncAll() throws IOException {
+        sync(appended());
+    }
+
+    /**
+     * Counts the appends up to the ticket as durable, for records the
+     * caller made durable some other way.
+     */
+    void markSynced(long ticket) {
+        syncLock.lock();
+        try {
+            synced = Math.max(synced, ticket);
+            syncDone.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background fsyncs and releases every waiting writer. Call
+     * this once the log is closed or deleted.
+     */
+    void close() {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+        }
+        markSynced(Long.MAX_VALUE);
+    }
+
+    private void syncTo(long ticket) throws IOException {
+        syncLock.lock();
+        try {
+            while (synced < ticket) {
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                try {
+                    syncDone.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for " + name + " to sync");
+                }
+            }
+            if (synced >= ticket) {
+                return;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+        long target = appended();
+        boolean forced = false;
+        try {
+            force();
+            forced = true;
+        } finally {
+            syncLock.lock();
+            try {
+                syncing = false;
+                if (forced) {
+                    synced = Math.max(synced, target);
+                }
+                syncDone.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package app_kvServer.persistence;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of stored keys ordered by the MD5 hash used for the key ring, so the
+ * keys of a hash range can be found in O(log n + k) instead of hashing every
+ * key on the node.
+ *
+ * A persistent index is written as a hash-sorted snapshot when the storage
+ * is closed. While the storage is open a dirty marker sits next to the
+ * snapshot; if the marker is still there on the next start (crash or kill),
+ * the snapshot may be stale and the index is rebuilt from the data directory.
+ */
+public class HashRangeIndex {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String SNAPSHOT = "hash.idx";
+    private static final String DIRTY_MARKER = "hash.dirty";
+    /** Sorts after every "<hash> <key>" entry sharing the same hash. */
+    private static final String HASH_END = "\uffff";
+
+    /** "<md5 hex> <key>" -> key */
+    private final ConcurrentSkipListMap<String, String> entries = new ConcurrentSkipListMap<>();
+
+    private final File directory;
+
+    /**
+     * Creates an index that only lives in memory.
+     */
+    public HashRangeIndex() {
+        this.directory = null;
+    }
+
+    private HashRangeIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the persistent index kept in metaDirectory, rebuilding it from the
+     * files in dataDirectory if it is missing or was not closed cleanly.
+     */
+    public static HashRangeIndex open(File metaDirectory, File dataDirectory) throws IOException {
+        HashRangeIndex index = new HashRangeIndex(metaDirectory);
+        if (!metaDirectory.isDirectory()) {
+            Files.createDirectories(metaDirectory.toPath());
+        }
+        File snapshot = new File(metaDirectory, SNAPSHOT);
+        File marker = new File(metaDirectory, DIRTY_MARKER);
+        if (snapshot.isFile() && !marker.exists()) {
+            index.load(snapshot);
+        } else {
+            logger.info("Rebuilding key index of " + dataDirectory);
+            File[] files = dataDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        index.add(file.getName());
+                    }
+                }
+            }
+        }
+        Files.write(marker.toPath(), new byte[0]);
+        logger.info("Opened key index with " + index.size() + " key(s)");
+        return index;
+    }
+
+    public boolean contains(String key) {
+        return entries.containsKey(entry(key));
+    }
+
+    public void add(String key) {
+        entries.put(entry(key), key);
+    }
+
+    public void remove(String key) {
+        entries.remove(entry(key));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Walks the keys whose hash lies in (lowerRange, upperRange] lazily,
+     * wrapping around the ring if upperRange is smaller than lowerRange.
+     * Keys added or removed meanwhile may or may not be seen.
+     */
+    public Iterator<String> iterateInRange(String lowerRange, String upperRange) {
+        if (lowerRange.equals(upperRange)) {
+            return entries.values().iterator();
+        }
+        if (lowerRange.compareTo(upperRange) < 0) {
+            return entries.subMap(lowerRange + HASH_END, upperRange + HASH_END).values().iterator();
+        }
+        return concat(entries.headMap(upperRange + HASH_END).values().iterator(),
+                entries.tailMap(lowerRange + HASH_END).values().iterator());
+    }
+
+    /**
+     * Walks the keys a node responsible for (lowerRange, upperRange] does not
+     * own, see {@link #iterateInRange}.
+     */
+    public Iterator<String> iterateOutsideRange(String lowerRange, String upperRange) {
+        if (lowerRange.equals(upperRange)) {
+            return Collections.emptyIterator();
+        }
+        return iterateInRange(upperRange, lowerRange);
+    }
+
+    /**
+     * Every key in hash order, walked lazily.
+     */
+    public Iterator<String> iterateKeys() {
+        return entries.values().iterator();
+    }
+
+    /**
+     * Writes the snapshot and removes the dirty marker. No-op for an in-memory index.
+     */
+    public void close() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fileOut, StandardCharsets.UTF_8))) {
+            for (String entry : entries.keySet()) {
+                out.write(entry);
+                out.write("\n");
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(directory, SNAPSHOT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(new File(directory, DIRTY_MARKER).toPath());
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private static Iterator<String> concat(final Iterator<String> first, final Iterator<String> second) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                if (second.hasNext()) {
+                    return second.next();
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void load(File snapshot) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(snapshot),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    entries.put(line, line.substring(separator + 1));
+                }
+            }
+        }
+    }
+
+    private static String entry(String key) {
+        return DigestUtils.md5Hex(key) + " " + key;
+    }
+}
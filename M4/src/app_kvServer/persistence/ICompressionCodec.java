@@ -0,0 +1,29 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+
+/**
+ * Compression algorithm for stored values. Codecs are registered with
+ * {@link ValueCompression} under an id that is written next to every
+ * compressed value, so data stays readable after the configured codec changes.
+ */
+public interface ICompressionCodec {
+
+    /**
+     * @return the id stored with values compressed by this codec, 1 to 127
+     */
+    public byte getId();
+
+    /**
+     * @return the name used to select the codec on the command line
+     */
+    public String getName();
+
+    public byte[] compress(byte[] raw);
+
+    /**
+     * @param rawLength length of the original bytes
+     * @throws IOException if the data is corrupt
+     */
+    public byte[] decompress(byte[] compressed, int rawLength) throws IOException;
+}
@@ -0,0 +1,86 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage engine of a KVServer, chosen at startup with the -st flag.
+ * Implementations must be safe to call from several client threads at once.
+ */
+public interface IStorageEngine {
+
+    /**
+     * Check if key is in storage.
+     * @return  true if key in storage, false otherwise
+     */
+    public boolean inStorage(String key);
+
+    /**
+     * Get the value associated with the key
+     * @return  value associated with key
+     * @throws IOException
+     *      when the key is not in storage or cannot be read
+     */
+    public String get(String key) throws IOException;
+
+    /**
+     * Store the key-value pair, replacing any previous value
+     * @return  true if the pair was stored
+     */
+    public boolean put(String key, String value);
+
+    /**
+     * Remove the key and its value
+     * @return  true if the key was in storage
+     */
+    public boolean delete(String key);
+
+    /**
+     * Remove every key-value pair
+     * @return  true if everything was removed
+     */
+    public boolean clearStorage();
+
+    /**
+     * Stream the key-value pairs a node no longer owns once its range becomes
+     * (lowerRange, upperRange], without holding them all in memory.
+     * Read errors surface as {@link java.io.UncheckedIOException}. If the
+     * iterator is {@link java.io.Closeable}, close it when stopping early.
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String lowerRange, String upperRange);
+
+    /**
+     * Stream every key-value pair, see {@link #iterator(String, String)}
+     */
+    public Iterator<Map.Entry<String, String>> iterator();
+
+    /**
+     * Collect the key-value pairs outside (lowerRange, upperRange] into a map
+     */
+    public HashMap<String, String> createMap(String lowerRange, String upperRange) throws IOException;
+
+    /**
+     * Collect every key-value pair into a map
+     */
+    public HashMap<String, String> createMap() throws IOException;
+
+    /**
+     * Store transferred data
+     * @param keyVals  alternating keys and values
+     * @return  true if every pair was stored
+     */
+    public boolean processMap(String[] keyVals);
+
+    /**
+     * Remove the key-value pairs outside (lowerRange, upperRange]
+     * @return  true if every pair was removed
+     */
+    public boolean removeExtraData(String lowerRange, String upperRange);
+
+    /**
+     * Release files, threads and memory held by the engine
+     */
+    public void close();
+}
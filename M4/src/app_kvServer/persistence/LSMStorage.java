@@ -0,0 +1,934 @@
+package app_kvServer.persistence;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LSM-tree storage engine. PUTs and DELETEs go to a sorted in-memory
+ * memtable. Once the memtable is full it is frozen and a background thread
+ * writes it out as an immutable {@link SSTable}, so writers never wait for
+ * the disk. The same thread merges runs of similarly sized tables
+ * (size-tiered compaction) to keep the number of tables a GET has to probe
+ * small. The MANIFEST file lists the live tables, newest first.
+ *
+ * Every table has a bloom filter, so a GET or existence check for a missing
+ * key is answered from memory instead of probing each table file.
+ *
+ * Each memtable has its own write-ahead log (wal-N.log), deleted once the
+ * memtable is safely in a table. Logs found on startup are replayed and
+ * flushed before the engine accepts writes.
+ */
+public class LSMStorage extends Storage {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final long MEMTABLE_SIZE = 4L * 1024 * 1024;
+    private static final int MAX_PENDING_FLUSHES = 4;
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final int MAX_COMPACTION_WIDTH = 32;
+    private static final int READ_RETRIES = 3;
+    private static final String TABLE_PREFIX = "sst-";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String MANIFEST = "MANIFEST";
+    private static final String BLOOM_SUFFIX = ".bloom";
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private volatile ConcurrentSkipListMap<String, String> memtable = new ConcurrentSkipListMap<>();
+
+    private long memtableBytes;
+
+    /** Frozen memtables waiting to be flushed, newest first. */
+    private final CopyOnWriteArrayList<ConcurrentSkipListMap<String, String>> immutables = new CopyOnWriteArrayList<>();
+
+    /**
+     * Guards the memtables, their write-ahead logs and the deletion of
+     * replaced tables. A lock rather than a monitor, so writers appending to
+     * the log or waiting for the flusher do not pin the carriers of virtual
+     * threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled whenever a frozen memtable is flushed or dropped. */
+    private final Condition flushed = lock.newCondition();
+
+    /** Write-ahead log of the memtable. Guarded by lock. */
+    private WriteAheadLog wal;
+
+    /** Write-ahead logs of the frozen memtables, in the same order. Guarded by lock. */
+    private final List<WriteAheadLog> frozenWals = new ArrayList<>();
+
+    private int nextWalId = 1;
+
+    /** Live tables, newest first. Only replaced by the background thread. */
+    private volatile List<SSTable> tables = new ArrayList<>();
+
+    private int nextGeneration = 1;
+
+    private final ExecutorService background;
+
+    private final double falsePositiveRate;
+
+    private final ValueCompression compression;
+
+    private final WriteAheadLog.SyncMode syncMode;
+
+    private final long syncIntervalMillis;
+
+    /** Table probes skipped because the bloom filter ruled the key out. */
+    private final AtomicLong bloomNegatives = new AtomicLong();
+
+    /** Table probes the bloom filter let through that found the key. */
+    private final AtomicLong bloomTruePositives = new AtomicLong();
+
+    /** Table probes the bloom filter let through that did not find the key. */
+    private final AtomicLong bloomFalsePositives = new AtomicLong();
+
+    public LSMStorage(String path) {
+        this(path, new StorageOptions());
+    }
+
+    /**
+     * @param options bloom filter false positive rate, write-ahead log sync mode
+     *                and compression of the table values
+     */
+    public LSMStorage(String path, StorageOptions options) {
+        super(path, false);
+        this.falsePositiveRate = options.getBloomFalsePositiveRate();
+        this.compression = ValueCompression.fromOptions(options);
+        this.syncMode = options.getWalSyncMode();
+        this.syncIntervalMillis = options.getWalSyncIntervalMillis();
+        try {
+            openTables();
+            recoverWals();
+        } catch (IOException e) {
+            logger.error("Unable to open tables in " + path, e);
+            throw new RuntimeException(e);
+        }
+        this.background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "lsm-background");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        try {
+            String value = lookup(key);
+            return value != null && value != SSTable.TOMBSTONE;
+        } catch (IOException e) {
+            logger.error("Unable to look up key " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean put(String key, String value) {
+        WriteAheadLog log;
+        long ticket;
+        lock.lock();
+        try {
+            log = wal;
+            ticket = write(key, value);
+        } catch (IOException e) {
+            logger.error("Unable to write key " + key, e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return sync(log, ticket);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        WriteAheadLog log;
+        long ticket;
+        lock.lock();
+        try {
+            if (!inStorage(key)) {
+                return false;
+            }
+            try {
+                log = wal;
+                ticket = write(key, SSTable.TOMBSTONE);
+            } catch (IOException e) {
+                logger.error("Unable to delete key " + key, e);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return sync(log, ticket);
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        String value = lookup(key);
+        if (value == null || value == SSTable.TOMBSTONE) {
+            throw new IOException("Key not found: " + key);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean clearStorage() {
+        lock.lock();
+        try {
+            memtable = new ConcurrentSkipListMap<>();
+            memtableBytes = 0;
+            immutables.clear();
+            for (WriteAheadLog log : frozenWals) {
+                log.delete();
+            }
+            frozenWals.clear();
+            wal.delete();
+            try {
+                wal = openWal();
+            } catch (IOException e) {
+                logger.error("Unable to open a new write-ahead log", e);
+                return false;
+            } finally {
+                flushed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            // runs after any flush already in progress, so nothing survives the clear
+            return background.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    boolean deleted = true;
+                    List<SSTable> current = tables;
+                    writeManifest(Collections.<SSTable>emptyList());
+                    lock.lock();
+                    try {
+                        tables = new ArrayList<>();
+                        for (SSTable table : current) {
+                            deleted = table.delete() && deleted;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    return deleted;
+                }
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Unable to clear tables", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator(final String lowerRange, final String upperRange) {
+        return live(lowerRange, upperRange);
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return live(null, null);
+    }
+
+    @Override
+    public boolean processMap(String[] keyVals) {
+        lock.lock();
+        try {
+            for (int i = 1; i < keyVals.length; i += 2) {
+                write(keyVals[i - 1], keyVals[i]);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to write transferred data", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return syncAll();
+    }
+
+    @Override
+    public boolean removeExtraData(String lowerRange, String upperRange) {
+        lock.lock();
+        try {
+            try (LiveIterator entries = live(lowerRange, upperRange)) {
+                while (entries.hasNext()) {
+                    write(entries.next().getKey(), SSTable.TOMBSTONE);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                logger.error("Unable to remove data outside of " + lowerRange + "," + upperRange, e);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return syncAll();
+    }
+
+    /**
+     * Flushes the memtable and waits for background work to finish.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!memtable.isEmpty()) {
+                rotate();
+            }
+        } catch (IOException e) {
+            // the memtable stays in its write-ahead log and is recovered on the next start
+            logger.error("Unable to flush the memtable", e);
+        } finally {
+            lock.unlock();
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            if (memtable.isEmpty()) {
+                wal.delete();
+            } else {
+                wal.close();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to close write-ahead log " + wal.getFile().getName(), e);
+        } finally {
+            lock.unlock();
+        }
+        for (SSTable table : tables) {
+            table.close();
+        }
+        logger.info("Bloom filters: " + bloomNegatives.get() + " probe(s) skipped, "
+                + bloomTruePositives.get() + " hit(s), " + bloomFalsePositives.get() + " false positive(s)");
+    }
+
+    public long getBloomNegatives() {
+        return bloomNegatives.get();
+    }
+
+    public long getBloomTruePositives() {
+        return bloomTruePositives.get();
+    }
+
+    public long getBloomFalsePositives() {
+        return bloomFalsePositives.get();
+    }
+
+    //////////////////// MEMTABLE HELPERS ////////////////////
+
+    private String lookup(String key) throws IOException {
+        String value = memtable.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (ConcurrentSkipListMap<String, String> frozen : immutables) {
+            value = frozen.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                for (SSTable table : tables) {
+                    if (!table.mightContain(key)) {
+                        bloomNegatives.incrementAndGet();
+                        continue;
+                    }
+                    value = table.get(key);
+                    if (value != null) {
+                        bloomTruePositives.incrementAndGet();
+                        return value;
+                    }
+                    bloomFalsePositives.incrementAndGet();
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                // a compaction replaced the table underneath us, retry with the new list
+                if (attempt == READ_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the write and applies it to the memtable. The caller holds the
+     * lock and syncs the log once it has released it.
+     *
+     * @param value the new value, or {@link SSTable#TOMBSTONE}
+     * @return the write-ahead log ticket of the write
+     */
+    private long write(String key, String value) throws IOException {
+        long ticket;
+        if (value == SSTable.TOMBSTONE) {
+            ticket = wal.append(WriteAheadLog.OP_DELETE, key, null);
+            memtableBytes += key.length();
+        } else {
+            ticket = wal.append(WriteAheadLog.OP_PUT, key, value);
+            memtableBytes += key.length() + value.length();
+        }
+        memtable.put(key, value);
+        rotateIfFull();
+        return ticket;
+    }
+
+    private boolean sync(WriteAheadLog log, long ticket) {
+        try {
+            log.sync(ticket);
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to sync write-ahead log " + log.getFile().getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Syncs every write-ahead log, for batches that may have rotated the memtable midway.
+     */
+    private boolean syncAll() {
+        List<WriteAheadLog> logs;
+        lock.lock();
+        try {
+            logs = new ArrayList<>(frozenWals);
+            logs.add(wal);
+        } finally {
+            lock.unlock();
+        }
+        boolean synced = true;
+        for (WriteAheadLog log : logs) {
+            try {
+                log.syncAll();
+            } catch (IOException e) {
+                logger.error("Unable to sync write-ahead log " + log.getFile().getName(), e);
+                synced = false;
+            }
+        }
+        return synced;
+    }
+
+    private void rotateIfFull() throws IOException {
+        if (memtableBytes >= MEMTABLE_SIZE) {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException {
+        while (immutables.size() >= MAX_PENDING_FLUSHES) {
+            // the flusher is behind, hold writers back rather than piling up memtables
+            try {
+                flushed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        WriteAheadLog next = openWal();
+        immutables.add(0, memtable);
+        frozenWals.add(0, wal);
+        wal = next;
+        memtable = new ConcurrentSkipListMap<>();
+        memtableBytes = 0;
+        background.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushOldest();
+                    compactIfNeeded();
+                } catch (IOException | UncheckedIOException e) {
+                    logger.error("Background flush failed", e);
+                }
+            }
+        });
+    }
+
+    private void flushOldest() throws IOException {
+        ConcurrentSkipListMap<String, String> oldest;
+        lock.lock();
+        try {
+            if (immutables.isEmpty()) {
+                return;
+            }
+            oldest = immutables.get(immutables.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        SSTable table = writeTable(oldest);
+        lock.lock();
+        try {
+            for (int i = immutables.size() - 1; i >= 0; i--) {
+                if (immutables.get(i) == oldest) {
+                    immutables.remove(i);
+                    frozenWals.remove(i).delete();
+                    break;
+                }
+            }
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        logger.debug("Flushed memtable to " + table.getFile().getName() + " (" + table.getRecordCount() + " records)");
+    }
+
+    /**
+     * Writes the memtable out as the newest table and records it in the manifest.
+     */
+    private SSTable writeTable(ConcurrentSkipListMap<String, String> memtable) throws IOException {
+        List<SSTable> current = tables;
+        int generation = nextGeneration++;
+        SSTable table = SSTable.write(generation, tableFile(generation), memtable.entrySet().iterator(),
+                current.isEmpty(), memtable.size(), falsePositiveRate, compression);
+
+        List<SSTable> updated = new ArrayList<>();
+        updated.add(table);
+        updated.addAll(current);
+        writeManifest(updated);
+        tables = updated;
+        return table;
+    }
+
+    /**
+     * Merges the memtables and tables lazily in key order, newest write
+     * winning, and leaves out deleted keys.
+     *
+     * @param lowerRange if not null, only keys outside (lowerRange, upperRange] are returned
+     */
+    private LiveIterator live(String lowerRange, String upperRange) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        List<TableEntries> cursors = new ArrayList<>();
+        lock.lock();
+        try {
+            // frozen memtables before tables: a flush adds the table before dropping the memtable
+            sources.add(memtable.entrySet().iterator());
+            for (ConcurrentSkipListMap<String, String> frozen : immutables) {
+                sources.add(frozen.entrySet().iterator());
+            }
+            // opened under the lock, as a compaction deletes the tables it replaces under it
+            try {
+                for (SSTable table : tables) {
+                    TableEntries entries = new TableEntries(table);
+                    cursors.add(entries);
+                    sources.add(entries);
+                }
+            } catch (IOException e) {
+                closeAll(cursors);
+                throw new UncheckedIOException(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return new LiveIterator(new MergeIterator(sources), cursors, lowerRange, upperRange);
+        } catch (RuntimeException e) {
+            closeAll(cursors);
+            throw e;
+        }
+    }
+
+    private static void closeAll(List<TableEntries> cursors) {
+        for (TableEntries entries : cursors) {
+            entries.close();
+        }
+    }
+
+    /**
+     * Live key-value pairs of a merge. Closing it closes the table cursors,
+     * for callers that stop before the end; they close by themselves once
+     * read to the end or on a read error.
+     */
+    private class LiveIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+
+        private final MergeIterator merged;
+        private final List<TableEntries> cursors;
+        private final String lowerRange;
+        private final String upperRange;
+        private Map.Entry<String, String> next;
+
+        private LiveIterator(MergeIterator merged, List<TableEntries> cursors, String lowerRange, String upperRange) {
+            this.merged = merged;
+            this.cursors = cursors;
+            this.lowerRange = lowerRange;
+            this.upperRange = upperRange;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && merged.hasNext()) {
+                    Map.Entry<String, String> entry = merged.next();
+                    if (entry.getValue() != SSTable.TOMBSTONE && (lowerRange == null
+                            || !keyInRange(entry.getKey(), lowerRange, upperRange))) {
+                        next = entry;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                close();
+                throw e;
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closeAll(cursors);
+        }
+    }
+
+    /**
+     * Adapts a table cursor to an iterator, closing it once exhausted.
+     */
+    private static class TableEntries implements Iterator<Map.Entry<String, String>>, Closeable {
+
+        private final SSTable.Cursor cursor;
+        private Boolean hasNext;
+
+        private TableEntries(SSTable table) throws IOException {
+            this.cursor = table.cursor();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (hasNext == null) {
+                try {
+                    hasNext = cursor.next();
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException(e);
+                }
+                if (!hasNext) {
+                    close();
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            return new AbstractMap.SimpleImmutableEntry<>(cursor.key(), cursor.value());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    //////////////////// TABLE HELPERS ////////////////////
+
+    private void openTables() throws IOException {
+        File manifest = new File(path, MANIFEST);
+        List<SSTable> opened = new ArrayList<>();
+        Set<Integer> live = new HashSet<>();
+        if (manifest.isFile()) {
+            for (String line : new String(Files.readAllBytes(manifest.toPath()), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    int generation = Integer.parseInt(line.trim());
+                    opened.add(SSTable.open(generation, tableFile(generation), falsePositiveRate));
+                    live.add(generation);
+                }
+            }
+        }
+        File[] files = new File(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                String suffix = name.endsWith(TABLE_SUFFIX) ? TABLE_SUFFIX
+                        : name.endsWith(BLOOM_SUFFIX) ? BLOOM_SUFFIX : null;
+                if (name.startsWith(TABLE_PREFIX) && suffix != null) {
+                    int generation = Integer.parseInt(name.substring(TABLE_PREFIX.length(),
+                            name.length() - suffix.length()));
+                    nextGeneration = Math.max(nextGeneration, generation + 1);
+                    if (!live.contains(generation)) {
+                        // left behind by a flush or compaction that never made it into the manifest
+                        logger.info("Deleting orphaned table file " + name);
+                        Files.delete(file.toPath());
+                    }
+                }
+            }
+        }
+        tables = opened;
+        logger.info("Opened " + opened.size() + " table(s)");
+    }
+
+    private void compactIfNeeded() throws IOException {
+        boolean compacted = true;
+        while (compacted) {
+            compacted = false;
+            List<SSTable> current = tables;
+            for (int start = 0; start < current.size() && !compacted; start++) {
+                long total = current.get(start).size();
+                int end = start + 1;
+                while (end < current.size() && end - start < MAX_COMPACTION_WIDTH) {
+                    long average = total / (end - start);
+                    long size = current.get(end).size();
+                    if (size > 2 * average || 2 * size < average) {
+                        break;
+                    }
+                    total += size;
+                    end++;
+                }
+                if (end - start >= COMPACTION_THRESHOLD) {
+                    compact(current, start, end);
+                    compacted = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the contiguous run of tables [start, end) into one. Deleted keys
+     * are only dropped when the run reaches the oldest table.
+     */
+    private void compact(List<SSTable> current, int start, int end) throws IOException {
+        List<SSTable> inputs = current.subList(start, end);
+        int generation = nextGeneration++;
+        int expectedKeys = 0;
+        for (SSTable table : inputs) {
+            expectedKeys += table.getRecordCount();
+        }
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        List<TableEntries> cursors = new ArrayList<>();
+        SSTable merged;
+        try {
+            for (SSTable table : inputs) {
+                TableEntries entries = new TableEntries(table);
+                cursors.add(entries);
+                sources.add(entries);
+            }
+            merged = SSTable.write(generation, tableFile(generation), new MergeIterator(sources),
+                    end == current.size(), expectedKeys, falsePositiveRate, compression);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            closeAll(cursors);
+        }
+
+        List<SSTable> updated = new ArrayList<>(current.subList(0, start));
+        updated.add(merged);
+        updated.addAll(current.subList(end, current.size()));
+        writeManifest(updated);
+        lock.lock();
+        try {
+            // a merge opening its cursors under the lock sees either the inputs or the merged table
+            tables = updated;
+            for (SSTable table : inputs) {
+                table.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+        logger.info("Compacted " + inputs.size() + " tables into " + merged.getFile().getName());
+    }
+
+    private void writeManifest(List<SSTable> tables) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (SSTable table : tables) {
+            manifest.append(table.getGeneration()).append("\n");
+        }
+        File tmp = new File(path, MANIFEST + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(path, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //////////////////// WRITE-AHEAD LOG HELPERS ////////////////////
+
+    /**
+     * Replays the write-ahead logs left by the previous run, oldest first,
+     * into a table, then starts a fresh log for the memtable.
+     */
+    private void recoverWals() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = new File(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.isFile() && name.startsWith(WAL_PREFIX) && name.endsWith(WAL_SUFFIX)) {
+                    ids.add(Integer.parseInt(name.substring(WAL_PREFIX.length(),
+                            name.length() - WAL_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(ids);
+        final ConcurrentSkipListMap<String, String> recovered = new ConcurrentSkipListMap<>();
+        List<WriteAheadLog> logs = new ArrayList<>();
+        int replayed = 0;
+        for (int id : ids) {
+            WriteAheadLog log = WriteAheadLog.open(walFile(id), WriteAheadLog.SyncMode.NONE, 0);
+            logs.add(log);
+            replayed += log.replay(new WriteAheadLog.Visitor() {
+                @Override
+                public void put(String key, String value) {
+                    recovered.put(key, value);
+                }
+
+                @Override
+                public void delete(String key) {
+                    recovered.put(key, SSTable.TOMBSTONE);
+                }
+            });
+            nextWalId = Math.max(nextWalId, id + 1);
+        }
+        if (!recovered.isEmpty()) {
+            SSTable table = writeTable(recovered);
+            logger.info("Recovered " + replayed + " write-ahead log record(s) into " + table.getFile().getName());
+        }
+        for (WriteAheadLog log : logs) {
+            log.delete();
+        }
+        wal = openWal();
+    }
+
+    private WriteAheadLog openWal() throws IOException {
+        return WriteAheadLog.open(walFile(nextWalId++), syncMode, syncIntervalMillis);
+    }
+
+    private File walFile(int id) {
+        return new File(path, WAL_PREFIX + String.format("%08d", id) + WAL_SUFFIX);
+    }
+
+    private File tableFile(int generation) {
+        return new File(path, TABLE_PREFIX + String.format("%08d", generation) + TABLE_SUFFIX);
+    }
+
+    /**
+     * K-way merge over key-sorted sources. When several sources hold the
+     * same key, the newest (lowest position in the list) wins. Deleted keys
+     * come out as {@link SSTable#TOMBSTONE}.
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+
+        private final PriorityQueue<Head> heads;
+        private Map.Entry<String, String> next;
+
+        private MergeIterator(List<Iterator<Map.Entry<String, String>>> sources) {
+            this.heads = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<Head>() {
+                @Override
+                public int compare(Head a, Head b) {
+                    int cmp = a.entry.getKey().compareTo(b.entry.getKey());
+                    return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+                }
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                step(new Head(sources.get(i), i));
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> current = next;
+            advance();
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() {
+            next = null;
+            if (heads.isEmpty()) {
+                return;
+            }
+            Head head = heads.poll();
+            next = head.entry;
+            step(head);
+            while (!heads.isEmpty() && heads.peek().entry.getKey().equals(next.getKey())) {
+                step(heads.poll());
+            }
+        }
+
+        private void step(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+
+        private static class Head {
+            private final Iterator<Map.Entry<String, String>> source;
+            private final int rank;
+            private Map.Entry<String, String> entry;
+
+            private Head(Iterator<Map.Entry<String, String>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+            }
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package app_kvServer.persistence;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Log-structured storage engine. Every PUT and DELETE is appended as a record
+ * to the active segment file and an in-memory index maps each key to the
+ * location of its latest value, so a PUT is one sequential append and a GET
+ * is one positional read. The index is rebuilt by replaying the segments on
+ * startup.
+ *
+ * Segments that are no longer appended to are memory-mapped, so a GET on
+ * them slices the value out of the page cache, which acts as a second level
+ * behind the server's cache, without a read call. The active segment is
+ * read with positional reads since it keeps growing.
+ *
+ * The segments are the log, so they take the write-ahead log's sync mode:
+ * with EVERY_BATCH a write is acknowledged once the active segment is
+ * fsynced, with concurrent writers sharing fsyncs ({@link GroupCommit}).
+ *
+ * Record layout: [op (1 byte)][key length (4 bytes)][value length (4 bytes)][key][value]
+ * where the value is encoded by {@link ValueCompression}.
+ */
+public class LogStorage extends Storage {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int HEADER_SIZE = 9;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final int READ_RETRIES = 3;
+
+    /**
+     * Guards the segments and the byte counts. A lock rather than a monitor,
+     * so writers appending or compacting do not pin the carriers of virtual
+     * threads.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+
+    /** The same keys ordered by hash, for range exports and removals. */
+    private final HashRangeIndex hashIndex = new HashRangeIndex();
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    private volatile Segment active;
+
+    private long liveBytes;
+
+    private long deadBytes;
+
+    private final ValueCompression compression;
+
+    private final WriteAheadLog.SyncMode syncMode;
+
+    /** Bytes ever appended, the tickets of {@link #commit}. */
+    private volatile long appended;
+
+    private final GroupCommit commit;
+
+    public LogStorage(String path) {
+        this(path, new StorageOptions());
+    }
+
+    public LogStorage(String path, StorageOptions options) {
+        super(path, false);
+        this.compression = ValueCompression.fromOptions(options);
+        this.syncMode = options.getWalSyncMode();
+        try {
+            openSegments();
+        } catch (IOException e) {
+            logger.error("Unable to open log segments in " + path, e);
+            throw new RuntimeException(e);
+        }
+        this.commit = new GroupCommit("log segments in " + path, syncMode, options.getWalSyncIntervalMillis(), 0) {
+            @Override
+            protected long appended() {
+                return appended;
+            }
+
+            @Override
+            protected void force() throws IOException {
+                // earlier segments were forced when they were sealed
+                try {
+                    active.channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // compacted or closed underneath us, which force the records, or cleared, which drops them
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean inStorage(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public boolean put(String key, String value) {
+        long ticket;
+        lock.lock();
+        try {
+            track(key, append(OP_PUT, key, value));
+            ticket = appended;
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.error("Unable to append key " + key + " to the log", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return sync(ticket);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        long ticket;
+        lock.lock();
+        try {
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            try {
+                ticket = appendTombstone(key);
+            } catch (IOException e) {
+                logger.error("Unable to append tombstone for key " + key + " to the log", e);
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return sync(ticket);
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        for (int attempt = 0; attempt < READ_RETRIES; attempt++) {
+            Location location = index.get(key);
+            if (location == null) {
+                throw new IOException("Key not found: " + key);
+            }
+            try {
+                return ValueCompression.decode(readValue(location));
+            } catch (ClosedChannelException e) {
+                // the segment was compacted away underneath us, look the key up again
+            }
+        }
+        throw new IOException("Unable to read key " + key + " from the log");
+    }
+
+    @Override
+    public boolean clearStorage() {
+        lock.lock();
+        try {
+            boolean deleted = true;
+            for (Segment segment : segments.values()) {
+                deleted = segment.delete() && deleted;
+            }
+            segments.clear();
+            index.clear();
+            hashIndex.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+            try {
+                active = createSegment(1);
+            } catch (IOException e) {
+                logger.error("Unable to create a new log segment", e);
+                return false;
+            }
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator(String lowerRange, String upperRange) {
+        return new StoredValues(hashIndex.iterateOutsideRange(lowerRange, upperRange));
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return new StoredValues(hashIndex.iterateKeys());
+    }
+
+    @Override
+    public boolean processMap(String[] keyVals) {
+        long ticket;
+        lock.lock();
+        try {
+            for (int i = 1; i < keyVals.length; i += 2) {
+                track(keyVals[i - 1], append(OP_PUT, keyVals[i - 1], keyVals[i]));
+            }
+            ticket = appended;
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.error("Unable to append transferred data to the log", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        return sync(ticket);
+    }
+
+    @Override
+    public boolean removeExtraData(String lowerRange, String upperRange) {
+        boolean deleted = true;
+        long ticket;
+        lock.lock();
+        try {
+            Iterator<String> keys = hashIndex.iterateOutsideRange(lowerRange, upperRange);
+            while (keys.hasNext()) {
+                String key = keys.next();
+                try {
+                    appendTombstone(key);
+                } catch (IOException e) {
+                    logger.error("Unable to append tombstone for key " + key + " to the log", e);
+                    deleted = false;
+                }
+            }
+            ticket = appended;
+        } finally {
+            lock.unlock();
+        }
+        return sync(ticket) && deleted;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.force(true);
+                    segment.channel.close();
+                } catch (IOException e) {
+                    logger.error("Unable to close log segment " + segment.file.getName(), e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit.close();
+    }
+
+    //////////////////// SEGMENT HELPERS ////////////////////
+
+    private void openSegments() throws IOException {
+        lock.lock();
+        try {
+            List<Integer> ids = new ArrayList<>();
+            File[] files = new File(path).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    }
+                }
+            }
+            Collections.sort(ids);
+            for (int id : ids) {
+                Segment segment = new Segment(id, segmentFile(id));
+                segments.put(id, segment);
+                replay(segment);
+            }
+            active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+            for (Segment segment : segments.values()) {
+                if (segment != active) {
+                    segment.seal();
+                }
+            }
+            logger.info("Opened " + segments.size() + " log segment(s) with " + index.size() + " key(s)");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from a segment. A record cut short by a crash can
+     * only be the last one in a segment, so the segment is truncated there.
+     */
+    private void replay(Segment segment) throws IOException {
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)))) {
+            while (offset + HEADER_SIZE <= segment.size) {
+                byte op = in.readByte();
+                int keyLength = in.readInt();
+                int valueLength = in.readInt();
+                if ((op != OP_PUT && op != OP_DELETE) || keyLength < 0 || valueLength < 0
+                        || offset + HEADER_SIZE + keyLength + valueLength > segment.size) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                in.readFully(keyBytes);
+                int skipped = 0;
+                while (skipped < valueLength) {
+                    skipped += in.skipBytes(valueLength - skipped);
+                }
+                String key = new String(keyBytes, StandardCharsets.UTF_8);
+                Location location = new Location(segment, offset, keyLength, valueLength);
+                if (op == OP_PUT) {
+                    track(key, location);
+                } else {
+                    track(key, null);
+                    deadBytes += location.length();
+                }
+                offset += location.length();
+            }
+        }
+        if (offset < segment.size) {
+            logger.warn("Truncating incomplete record at offset " + offset + " of " + segment.file.getName());
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    private void track(String key, Location location) {
+        Location previous = location == null ? index.remove(key) : index.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.length();
+            deadBytes += previous.length();
+        } else if (location != null) {
+            hashIndex.add(key);
+        }
+        if (location != null) {
+            liveBytes += location.length();
+        } else if (previous != null) {
+            hashIndex.remove(key);
+        }
+    }
+
+    /**
+     * @return the ticket of the tombstone
+     */
+    private long appendTombstone(String key) throws IOException {
+        Location tombstone = append(OP_DELETE, key, null);
+        track(key, null);
+        deadBytes += tombstone.length();
+        long ticket = appended;
+        compactIfNeeded();
+        return ticket;
+    }
+
+    private Location append(byte op, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : compression.encode(value);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+        record.put(op).putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+        record.flip();
+        return appendRecord(record, keyBytes.length, valueBytes.length);
+    }
+
+    private Location appendRecord(ByteBuffer record, int keyLength, int valueLength) throws IOException {
+        if (active.size > 0 && active.size + record.remaining() > MAX_SEGMENT_SIZE) {
+            if (syncMode != WriteAheadLog.SyncMode.NONE) {
+                // group commit only forces the active segment
+                active.channel.force(false);
+            }
+            active.seal();
+            active = createSegment(active.id + 1);
+        }
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.size += active.channel.write(record, active.size);
+        }
+        appended += record.limit();
+        return new Location(active, offset, keyLength, valueLength);
+    }
+
+    /**
+     * @return the value bytes, sliced out of the mapping if the segment is sealed
+     */
+    private ByteBuffer readValue(Location location) throws IOException {
+        long position = location.offset + HEADER_SIZE + location.keyLength;
+        ByteBuffer mapped = location.segment.mapped;
+        if (mapped != null) {
+            ByteBuffer value = mapped.duplicate();
+            value.position((int) position).limit((int) position + location.valueLength);
+            return value.slice();
+        }
+        ByteBuffer value = ByteBuffer.allocate(location.valueLength);
+        while (value.hasRemaining()) {
+            if (location.segment.channel.read(value, position + value.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + location.segment.file.getName());
+            }
+        }
+        value.flip();
+        return value;
+    }
+
+    /**
+     * Rewrites the live records into fresh segments once more than half of
+     * the log is overwritten or deleted data. Old segments are removed oldest
+     * first so a crash midway never resurrects a deleted key.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (deadBytes < MAX_SEGMENT_SIZE || deadBytes < liveBytes) {
+            return;
+        }
+        logger.info("Compacting log: " + liveBytes + " live bytes, " + deadBytes + " dead bytes");
+        List<Segment> old = new ArrayList<>(segments.values());
+        int firstRewritten = active.id + 1;
+        active = createSegment(firstRewritten);
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            ByteBuffer record = ByteBuffer.allocate(location.length());
+            while (record.hasRemaining()) {
+                if (location.segment.channel.read(record, location.offset + record.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + location.segment.file.getName());
+                }
+            }
+            record.flip();
+            entry.setValue(appendRecord(record, location.keyLength, location.valueLength));
+        }
+        // the rewritten records must survive a power loss before their originals are unlinked
+        for (Segment segment : segments.tailMap(firstRewritten).values()) {
+            segment.channel.force(true);
+        }
+        for (Segment segment : old) {
+            segments.remove(segment.id);
+            segment.delete();
+        }
+        deadBytes = 0;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private boolean sync(long ticket) {
+        try {
+            commit.sync(ticket);
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to sync log segment " + active.file.getName(), e);
+            return false;
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(path, SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+
+        /** The whole segment once it is no longer appended to. */
+        private volatile ByteBuffer mapped;
+
+        private Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        private void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        private boolean delete() {
+            // readers still holding the mapping keep it alive, the rest of it goes with the garbage collector
+            mapped = null;
+            try {
+                channel.close();
+                return Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                logger.error("Unable to delete log segment " + file.getName(), e);
+                return false;
+            }
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int keyLength;
+        private final int valueLength;
+
+        private Location(Segment segment, long offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        private int length() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+}
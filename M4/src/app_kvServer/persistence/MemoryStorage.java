@@ -0,0 +1,148 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage engine that keeps every key-value pair in memory and never
+ * touches the disk. Everything is lost when the server stops, which suits
+ * tiers that only hold data that can be recreated, such as sessions.
+ */
+public class MemoryStorage implements IStorageEngine {
+
+    private final ConcurrentHashMap<String, String> data = new ConcurrentHashMap<>();
+
+    /** The same keys ordered by hash, for range exports and removals. */
+    private final HashRangeIndex hashIndex = new HashRangeIndex();
+
+    @Override
+    public boolean inStorage(String key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        String value = data.get(key);
+        if (value == null) {
+            throw new IOException("Key not found: " + key);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean put(String key, String value) {
+        if (data.put(key, value) == null) {
+            hashIndex.add(key);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String key) {
+        if (data.remove(key) == null) {
+            return false;
+        }
+        hashIndex.remove(key);
+        return true;
+    }
+
+    @Override
+    public boolean clearStorage() {
+        data.clear();
+        hashIndex.clear();
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator(String lowerRange, String upperRange) {
+        return values(hashIndex.iterateOutsideRange(lowerRange, upperRange));
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return values(hashIndex.iterateKeys());
+    }
+
+    @Override
+    public HashMap<String, String> createMap(String lowerRange, String upperRange) {
+        return drain(iterator(lowerRange, upperRange));
+    }
+
+    @Override
+    public HashMap<String, String> createMap() {
+        return new HashMap<>(data);
+    }
+
+    @Override
+    public boolean processMap(String[] keyVals) {
+        for (int i = 1; i < keyVals.length; i += 2) {
+            put(keyVals[i - 1], keyVals[i]);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeExtraData(String lowerRange, String upperRange) {
+        Iterator<String> keys = hashIndex.iterateOutsideRange(lowerRange, upperRange);
+        while (keys.hasNext()) {
+            delete(keys.next());
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private static HashMap<String, String> drain(Iterator<Map.Entry<String, String>> entries) {
+        HashMap<String, String> map = new HashMap<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * Pairs each key with its value, skipping keys deleted in the meantime.
+     */
+    private Iterator<Map.Entry<String, String>> values(final Iterator<String> keys) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    String key = keys.next();
+                    String value = data.get(key);
+                    if (value != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = next;
+                next = null;
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,438 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory storage engine that keeps keys and values outside the Java heap,
+ * so a multi-GB data set neither grows the heap nor lengthens GC pauses.
+ * Nothing is persisted.
+ *
+ * Records are appended to direct ByteBuffer slabs as
+ * [key length (4)][value length (4)][key][value]. An open-addressing table
+ * with linear probing maps key hashes to record addresses; it only holds
+ * primitive arrays, so there is no heap object per key. Overwritten and
+ * deleted records stay in the slabs until they outweigh the live ones, at
+ * which point the live records are copied into fresh slabs.
+ *
+ * Range exports and removals scan the table and hash each key, since a
+ * hash-ordered index of every key would put the keys back on the heap.
+ */
+public class OffHeapStorage implements IStorageEngine {
+
+    private static final int SLAB_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private List<ByteBuffer> slabs = new ArrayList<>();
+
+    /** Write position in the last slab. */
+    private int slabPosition;
+
+    /** Record address + 1 per slot, 0 for an empty slot. */
+    private long[] addresses = new long[INITIAL_CAPACITY];
+
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    private long liveBytes;
+
+    private long deadBytes;
+
+    @Override
+    public boolean inStorage(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            return find(keyBytes, hash(keyBytes)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        lock.readLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                throw new IOException("Key not found: " + key);
+            }
+            return value(addresses[slot] - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            long address = append(keyBytes, valueBytes);
+            int slot = find(keyBytes, hash);
+            if (slot >= 0) {
+                int previous = recordLength(addresses[slot] - 1);
+                liveBytes -= previous;
+                deadBytes += previous;
+            } else {
+                if (size + 1 > addresses.length * MAX_LOAD) {
+                    resize(addresses.length * 2);
+                }
+                slot = freeSlot(hash);
+                hashes[slot] = hash;
+                size++;
+            }
+            addresses[slot] = address + 1;
+            liveBytes += HEADER_SIZE + keyBytes.length + valueBytes.length;
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(keyBytes, hash(keyBytes));
+            if (slot < 0) {
+                return false;
+            }
+            remove(slot);
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean clearStorage() {
+        lock.writeLock().lock();
+        try {
+            slabs = new ArrayList<>();
+            slabPosition = 0;
+            addresses = new long[INITIAL_CAPACITY];
+            hashes = new int[INITIAL_CAPACITY];
+            size = 0;
+            liveBytes = 0;
+            deadBytes = 0;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the table slot by slot, copying one record at a time onto the
+     * heap. Writes made meanwhile may or may not be seen; the server is
+     * write locked while it exports data.
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator(final String lowerRange, final String upperRange) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int slot;
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+                lock.readLock().lock();
+                try {
+                    while (next == null && slot < addresses.length) {
+                        long address = addresses[slot++] - 1;
+                        if (address < 0) {
+                            continue;
+                        }
+                        String key = key(address);
+                        if (lowerRange == null || !Storage.isKeyInRange(key, lowerRange, upperRange)) {
+                            next = new AbstractMap.SimpleImmutableEntry<>(key, value(address));
+                        }
+                    }
+                    return next != null;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = next;
+                next = null;
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return iterator(null, null);
+    }
+
+    @Override
+    public HashMap<String, String> createMap(String lowerRange, String upperRange) {
+        return drain(iterator(lowerRange, upperRange));
+    }
+
+    @Override
+    public HashMap<String, String> createMap() {
+        return drain(iterator());
+    }
+
+    @Override
+    public boolean processMap(String[] keyVals) {
+        for (int i = 1; i < keyVals.length; i += 2) {
+            put(keyVals[i - 1], keyVals[i]);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeExtraData(String lowerRange, String upperRange) {
+        if (lowerRange.equals(upperRange)) {
+            return true;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = 0;
+            while (slot < addresses.length) {
+                long address = addresses[slot] - 1;
+                if (address >= 0 && !Storage.isKeyInRange(key(address), lowerRange, upperRange)) {
+                    // a later record of the cluster may shift into this slot, so look at it again
+                    remove(slot);
+                } else {
+                    slot++;
+                }
+            }
+            compactIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the slabs. Their memory is returned once the buffers are collected.
+     */
+    @Override
+    public void close() {
+        clearStorage();
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //////////////////// TABLE HELPERS ////////////////////
+
+    /**
+     * @return the slot holding the key, or -1
+     */
+    private int find(byte[] key, int hash) {
+        int mask = addresses.length - 1;
+        for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && keyEquals(addresses[slot] - 1, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(int hash) {
+        int mask = addresses.length - 1;
+        int slot = hash & mask;
+        while (addresses[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Empties the slot and shifts later records of the probe cluster back, so
+     * lookups never need tombstones.
+     */
+    private void remove(int slot) {
+        int length = recordLength(addresses[slot] - 1);
+        liveBytes -= length;
+        deadBytes += length;
+        size--;
+        int mask = addresses.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (addresses[next] != 0) {
+            int home = hashes[next] & mask;
+            // move the record back unless its home slot lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                addresses[hole] = addresses[next];
+                hashes[hole] = hashes[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[hole] = 0;
+        hashes[hole] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldAddresses = addresses;
+        int[] oldHashes = hashes;
+        addresses = new long[capacity];
+        hashes = new int[capacity];
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != 0) {
+                int slot = freeSlot(oldHashes[i]);
+                addresses[slot] = oldAddresses[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x01000193;
+        }
+        // MurmurHash3 finalizer, the low bits pick the slot
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    //////////////////// SLAB HELPERS ////////////////////
+
+    /**
+     * @return the address of the new record: slab index in the high 32 bits, offset in the low
+     */
+    private long append(byte[] key, byte[] value) {
+        int length = HEADER_SIZE + key.length + value.length;
+        if (slabs.isEmpty() || slabPosition + length > slabs.get(slabs.size() - 1).capacity()) {
+            slabs.add(ByteBuffer.allocateDirect(Math.max(SLAB_SIZE, length)));
+            slabPosition = 0;
+        }
+        int slab = slabs.size() - 1;
+        ByteBuffer buffer = slabs.get(slab);
+        buffer.putInt(slabPosition, key.length);
+        buffer.putInt(slabPosition + 4, value.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(slabPosition + HEADER_SIZE);
+        target.put(key).put(value);
+        long address = ((long) slab << 32) | slabPosition;
+        slabPosition += length;
+        return address;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> 32));
+    }
+
+    private int recordLength(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = (int) address;
+        return HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+    private boolean keyEquals(long address, byte[] key) {
+        ByteBuffer slab = slab(address);
+        int offset = (int) address;
+        if (slab.getInt(offset) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String key(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = (int) address;
+        return decode(slab, offset + HEADER_SIZE, slab.getInt(offset));
+    }
+
+    private String value(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = (int) address;
+        int keyLength = slab.getInt(offset);
+        return decode(slab, offset + HEADER_SIZE + keyLength, slab.getInt(offset + 4));
+    }
+
+    private static String decode(ByteBuffer slab, int offset, int length) {
+        ByteBuffer slice = slab.duplicate();
+        slice.position(offset).limit(offset + length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    /**
+     * Copies the live records into fresh slabs once the dead ones take up
+     * more than a slab and more than the live ones.
+     */
+    private void compactIfNeeded() {
+        if (deadBytes < SLAB_SIZE || deadBytes < liveBytes) {
+            return;
+        }
+        List<ByteBuffer> oldSlabs = slabs;
+        slabs = new ArrayList<>();
+        slabPosition = 0;
+        for (int slot = 0; slot < addresses.length; slot++) {
+            long address = addresses[slot] - 1;
+            if (address < 0) {
+                continue;
+            }
+            ByteBuffer slab = oldSlabs.get((int) (address >>> 32));
+            int offset = (int) address;
+            byte[] key = new byte[slab.getInt(offset)];
+            byte[] value = new byte[slab.getInt(offset + 4)];
+            ByteBuffer source = slab.duplicate();
+            source.position(offset + HEADER_SIZE);
+            source.get(key).get(value);
+            addresses[slot] = append(key, value) + 1;
+        }
+        deadBytes = 0;
+    }
+
+    private static HashMap<String, String> drain(Iterator<Map.Entry<String, String>> entries) {
+        HashMap<String, String> map = new HashMap<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+}
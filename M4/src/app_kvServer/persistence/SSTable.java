@@ -0,0 +1,370 @@
+package app_kvServer.persistence;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, key-sorted table file written by {@link LSMStorage} when a
+ * memtable is flushed or when tables are compacted together.
+ *
+ * File layout:
+ * [records][sparse index][index offset (8)][record count (4)][index count (4)][magic (4)]
+ * where a record is [flag (1)][key length (4)][value length (4)][key][value], the
+ * value being encoded by {@link ValueCompression}, and the sparse index holds [key length (4)][key][record offset (8)] for every
+ * INDEX_INTERVAL-th record. A {@link BloomFilter} over every key in the table,
+ * deleted ones included, is kept in a .bloom file next to it.
+ *
+ * The records are memory-mapped, so a lookup slices keys and values out of
+ * the page cache without a read call or an intermediate byte[].
+ */
+class SSTable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /**
+     * Marker stored in memtables and returned by lookups for deleted keys.
+     * Always compared by identity.
+     */
+    static final String TOMBSTONE = new String("<tombstone>");
+
+    private static final int MAGIC = 0x4C534D31;
+    private static final int FOOTER_SIZE = 20;
+    private static final int HEADER_SIZE = 9;
+    private static final int INDEX_INTERVAL = 16;
+    private static final byte FLAG_PUT = 1;
+    private static final byte FLAG_DELETE = 2;
+
+    private final int generation;
+    private final File file;
+    private final FileChannel channel;
+    private final long dataEnd;
+    /** The records, or null if they are too large to map in one buffer. */
+    private final ByteBuffer records;
+    private final int recordCount;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final String lastKey;
+    private final BloomFilter bloomFilter;
+
+    private SSTable(int generation, File file, double falsePositiveRate) throws IOException {
+        this.generation = generation;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        ByteBuffer footer = readFully(channel.size() - FOOTER_SIZE, FOOTER_SIZE);
+        this.dataEnd = footer.getLong();
+        this.recordCount = footer.getInt();
+        int indexCount = footer.getInt();
+        if (footer.getInt() != MAGIC) {
+            channel.close();
+            throw new IOException("Corrupt table file " + file.getName());
+        }
+
+        ByteBuffer index = readFully(dataEnd, (int) (channel.size() - FOOTER_SIZE - dataEnd));
+        this.indexKeys = new String[indexCount];
+        this.indexOffsets = new long[indexCount];
+        for (int i = 0; i < indexCount; i++) {
+            byte[] key = new byte[index.getInt()];
+            index.get(key);
+            indexKeys[i] = new String(key, StandardCharsets.UTF_8);
+            indexOffsets[i] = index.getLong();
+        }
+        this.records = dataEnd <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, dataEnd) : null;
+        this.lastKey = recordCount == 0 ? null : lastRecordKey();
+
+        File bloomFile = bloomFile(file);
+        if (bloomFile.isFile()) {
+            this.bloomFilter = BloomFilter.readFrom(bloomFile);
+        } else {
+            logger.info("Rebuilding bloom filter of " + file.getName());
+            this.bloomFilter = new BloomFilter(recordCount, falsePositiveRate);
+            Cursor cursor = new Cursor();
+            try {
+                while (cursor.next()) {
+                    bloomFilter.add(cursor.key());
+                }
+            } finally {
+                cursor.close();
+            }
+            bloomFilter.writeTo(bloomFile);
+        }
+    }
+
+    /**
+     * @param falsePositiveRate used only if the bloom filter file is missing and has to be rebuilt
+     */
+    static SSTable open(int generation, File file, double falsePositiveRate) throws IOException {
+        return new SSTable(generation, file, falsePositiveRate);
+    }
+
+    /**
+     * Writes the given key-sorted entries to a new table file and syncs it to disk.
+     *
+     * @param dropTombstones    true if deleted keys can be left out entirely, i.e. no
+     *                          older table can still hold a value for them
+     * @param expectedKeys      upper bound on the number of entries, used to size the bloom filter
+     * @param falsePositiveRate false positive rate of the bloom filter
+     * @param compression       encoding of the values
+     */
+    static SSTable write(int generation, File file, Iterator<Map.Entry<String, String>> entries,
+                         boolean dropTombstones, int expectedKeys, double falsePositiveRate,
+                         ValueCompression compression) throws IOException {
+        BloomFilter bloomFilter = new BloomFilter(expectedKeys, falsePositiveRate);
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+        long offset = 0;
+        int count = 0;
+        FileOutputStream fileOut = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024))) {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                boolean deleted = entry.getValue() == TOMBSTONE;
+                if (deleted && dropTombstones) {
+                    continue;
+                }
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = deleted ? new byte[0] : compression.encode(entry.getValue());
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(offset);
+                }
+                out.writeByte(deleted ? FLAG_DELETE : FLAG_PUT);
+                out.writeInt(key.length);
+                out.writeInt(value.length);
+                out.write(key);
+                out.write(value);
+                bloomFilter.add(entry.getKey());
+                offset += HEADER_SIZE + key.length + value.length;
+                count++;
+            }
+            for (int i = 0; i < indexKeys.size(); i++) {
+                byte[] key = indexKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+            }
+            out.writeLong(offset);
+            out.writeInt(count);
+            out.writeInt(indexKeys.size());
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        bloomFilter.writeTo(bloomFile(file));
+        return open(generation, file, falsePositiveRate);
+    }
+
+    static File bloomFile(File table) {
+        String name = table.getName();
+        return new File(table.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".bloom");
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long size() {
+        return file.length();
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return false if the key is certainly not in this table
+     */
+    boolean mightContain(String key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    /**
+     * @return the value of the key, {@link #TOMBSTONE} if the table records its
+     *      deletion, or null if the table knows nothing about the key
+     */
+    String get(String key) throws IOException {
+        if (recordCount == 0 || key.compareTo(indexKeys[0]) < 0 || key.compareTo(lastKey) > 0) {
+            return null;
+        }
+        int block = floorIndex(key);
+        long position = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        while (position < end) {
+            ByteBuffer header = readFully(position, HEADER_SIZE);
+            byte flag = header.get();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            String recordKey = StandardCharsets.UTF_8.decode(readFully(position + HEADER_SIZE, keyLength)).toString();
+            int cmp = recordKey.compareTo(key);
+            if (cmp == 0) {
+                if (flag == FLAG_DELETE) {
+                    return TOMBSTONE;
+                }
+                return ValueCompression.decode(readFully(position + HEADER_SIZE + keyLength, valueLength));
+            } else if (cmp > 0) {
+                return null;
+            }
+            position += HEADER_SIZE + keyLength + valueLength;
+        }
+        return null;
+    }
+
+    /**
+     * @return a cursor that reads the table sequentially in key order
+     */
+    Cursor cursor() throws IOException {
+        return new Cursor();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Unable to close table " + file.getName(), e);
+        }
+    }
+
+    boolean delete() {
+        close();
+        try {
+            Files.deleteIfExists(bloomFile(file).toPath());
+            return Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.error("Unable to delete table " + file.getName(), e);
+            return false;
+        }
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private int floorIndex(String key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (indexKeys[mid].compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private String lastRecordKey() throws IOException {
+        Cursor cursor = new Cursor(indexOffsets[indexOffsets.length - 1]);
+        String key = null;
+        try {
+            while (cursor.next()) {
+                key = cursor.key();
+            }
+        } finally {
+            cursor.close();
+        }
+        return key;
+    }
+
+    /**
+     * @return a slice of the mapping if the range lies in the records, otherwise a copy read from the file
+     */
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        if (records != null && position + length <= dataEnd) {
+            ByteBuffer slice = records.duplicate();
+            slice.position((int) position).limit((int) position + length);
+            return slice.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of table " + file.getName());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sequential reader over the records of the table, in key order.
+     */
+    class Cursor {
+        private final DataInputStream in;
+        private long position;
+        private String key;
+        private String value;
+
+        private Cursor() throws IOException {
+            this(0);
+        }
+
+        private Cursor(long start) throws IOException {
+            FileInputStream fileIn = new FileInputStream(file);
+            fileIn.getChannel().position(start);
+            this.in = new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+            this.position = start;
+        }
+
+        /**
+         * Advances to the next record.
+         * @return false once every record has been read
+         */
+        boolean next() throws IOException {
+            if (position >= dataEnd) {
+                return false;
+            }
+            byte flag = in.readByte();
+            byte[] keyBytes = new byte[in.readInt()];
+            byte[] valueBytes = new byte[in.readInt()];
+            in.readFully(keyBytes);
+            in.readFully(valueBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            value = flag == FLAG_DELETE ? TOMBSTONE : ValueCompression.decode(valueBytes);
+            position += HEADER_SIZE + keyBytes.length + valueBytes.length;
+            return true;
+        }
+
+        String key() {
+            return key;
+        }
+
+        /**
+         * @return the value of the current record, or {@link #TOMBSTONE}
+         */
+        String value() {
+            return value;
+        }
+
+        SSTable table() {
+            return SSTable.this;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                logger.error("Unable to close cursor on " + file.getName(), e);
+            }
+        }
+    }
+}
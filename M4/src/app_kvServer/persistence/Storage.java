@@ -1,26 +1,116 @@
 package app_kvServer.persistence;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class Storage {
+public class Storage implements IStorageEngine {
 
-    private String path;
+    private static Logger logger = Logger.getRootLogger();
+
+    /** Longer than any key, so it can never clash with a key's file. */
+    private static final String INDEX_DIRECTORY = ".storage-index";
+
+    private static final String WAL_DIRECTORY = ".storage-wal";
+
+    /** Size of the write-ahead log at which the key files are synced and the log is emptied. */
+    private static final long CHECKPOINT_SIZE = 16L * 1024 * 1024;
+
+    protected String path;
+
+    private HashRangeIndex index;
+
+    private WriteAheadLog wal;
+
+    private WriteAheadLog.SyncMode syncMode;
+
+    private ValueCompression compression = ValueCompression.NONE;
+
+    /** Keys written or deleted since the last checkpoint, whose files may not be on disk yet. */
+    private final Set<String> unsynced = ConcurrentHashMap.newKeySet();
+
+    /** Held shared by writers and exclusively while checkpointing or clearing. */
+    private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
 
     public Storage(String path) {
+        this(path, new StorageOptions());
+    }
+
+    /**
+     * Every PUT and DELETE is first appended to a write-ahead log, whose
+     * sync mode decides when the write is durable. The key files themselves
+     * are only synced at checkpoints, after which the log is emptied.
+     */
+    public Storage(String path, StorageOptions options) {
+        this(path, true);
+        this.syncMode = options.getWalSyncMode();
+        this.compression = ValueCompression.fromOptions(options);
+        try {
+            File walDirectory = new File(path, WAL_DIRECTORY);
+            if (!walDirectory.isDirectory()) {
+                Files.createDirectory(walDirectory.toPath());
+            }
+            this.wal = WriteAheadLog.open(new File(walDirectory, "wal.log"), syncMode,
+                    options.getWalSyncIntervalMillis());
+            recover();
+        } catch (IOException e) {
+            logger.error("Unable to open write-ahead log in " + path, e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param fileIndex false for engines that keep their own index of the
+     *                  stored keys instead of one file per key
+     */
+    protected Storage(String path, boolean fileIndex) {
         this.path = path;
         initializeStorage();
+        if (fileIndex) {
+            try {
+                this.index = HashRangeIndex.open(new File(path, INDEX_DIRECTORY), new File(path));
+            } catch (IOException e) {
+                logger.error("Unable to open key index in " + path, e);
+                throw new RuntimeException(e);
+            }
+        }
     }
+
+    /**
+     * Answered from the in-memory key index, so a miss costs no file system call.
+     */
     public boolean inStorage(String key) {
-        return new File(path + "/" + key).isFile();
+        return index.contains(key);
     }
 
     public boolean clearStorage() {
+        checkpointLock.writeLock().lock();
+        try {
+            wal.reset();
+            unsynced.clear();
+        } catch (IOException e) {
+            logger.error("Unable to reset write-ahead log of " + path, e);
+            return false;
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
         File directory = new File(path);
         boolean deleted = true;
         for (File f : directory.listFiles()) {
@@ -31,6 +121,7 @@ public class Storage {
                 deleted = deleted && f.delete();
             }
         }
+        index.clear();
         return deleted;
     }
 
@@ -47,24 +138,47 @@ public class Storage {
 
     public boolean put(String key, String value) {
         try {
-            Files.write(FileSystems.getDefault().getPath(path, key), value.getBytes());
+            wal.sync(apply(WriteAheadLog.OP_PUT, key, value));
+            checkpointIfNeeded();
             return true;
         } catch (IOException e) {
+            logger.error("Unable to write key " + key, e);
             return false;
         }
     }
 
     public boolean delete(String key) {
-        File f = new File(path + File.separator + key);
-        return f.delete();
+        boolean deleted = inStorage(key);
+        try {
+            wal.sync(apply(WriteAheadLog.OP_DELETE, key, null));
+            checkpointIfNeeded();
+        } catch (IOException e) {
+            logger.error("Unable to delete key " + key, e);
+            return false;
+        }
+        return deleted;
     }
 
     public String get(String key) throws IOException {
-        return Files.readString(FileSystems.getDefault().getPath(path, key));
+        return ValueCompression.decode(Files.readAllBytes(FileSystems.getDefault().getPath(path, key)));
     }
 
     public boolean keyInRange(String key, String lowerRange, String upperRange) {
-        String hashedKey = DigestUtils.md5Hex(key);
+        return isKeyInRange(key, lowerRange, upperRange);
+    }
+
+    /**
+     * Engines that do not extend Storage share the ring arithmetic through this.
+     */
+    static boolean isKeyInRange(String key, String lowerRange, String upperRange) {
+        return isHashInRange(DigestUtils.md5Hex(key), lowerRange, upperRange);
+    }
+
+    /**
+     * @param hashedKey md5 hash of a key in hex
+     * @return true if the hash lies in (lowerRange, upperRange] on the ring
+     */
+    public static boolean isHashInRange(String hashedKey, String lowerRange, String upperRange) {
         if (hashedKey.compareTo(upperRange) == 0) {
             return true;
         }
@@ -79,58 +193,238 @@ public class Storage {
         }
     }
 
+    /**
+     * Collects the key-value pairs this node no longer owns once its range
+     * becomes (lowerRange, upperRange]. Only the keys outside the range are
+     * read, found through the hash-ordered index.
+     */
     public HashMap<String, String> createMap(String lowerRange, String upperRange) throws IOException {
-        File folder = new File(path);
-        HashMap<String, String> map = new HashMap<String, String>();
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory() || keyInRange(fileEntry.getName(), lowerRange, upperRange)) {
-                System.out.println("Ignoring directory");
-            } else {
-                System.out.println(Files.readString(fileEntry.toPath()));
-                map.put(fileEntry.getName(), Files.readString(fileEntry.toPath()));
-            }
-        }
-        return map;
+        return drain(iterator(lowerRange, upperRange));
     }
 
     public HashMap<String, String> createMap() throws IOException {
-        File folder = new File(path);
-        HashMap<String, String> map = new HashMap<String, String>();
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory()) {
-                System.out.println("Ignoring directory");
-            } else {
-                System.out.println(Files.readString(fileEntry.toPath()));
-                map.put(fileEntry.getName(), Files.readString(fileEntry.toPath()));
-            }
-        }
-        return map;
+        return drain(iterator());
+    }
+
+    /**
+     * Streams the key-value pairs this node no longer owns once its range
+     * becomes (lowerRange, upperRange]. Values are read one at a time as the
+     * iterator reaches them, so memory use does not grow with the data.
+     * Read errors surface as {@link UncheckedIOException}.
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String lowerRange, String upperRange) {
+        return new StoredValues(index.iterateOutsideRange(lowerRange, upperRange));
+    }
+
+    /**
+     * Streams every stored key-value pair, see {@link #iterator(String, String)}.
+     */
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return new StoredValues(index.iterateKeys());
     }
 
     public boolean processMap(String[] keyVals) {
         try {
+            long ticket = 0;
             for (int i = 1; i < keyVals.length; i+=2) {
-                Files.write(FileSystems.getDefault().getPath(path, keyVals[i - 1]), keyVals[i].getBytes());
+                ticket = apply(WriteAheadLog.OP_PUT, keyVals[i - 1], keyVals[i]);
+                checkpointIfNeeded();
             }
+            wal.sync(ticket);
             return true;
         } catch (IOException e) {
+            logger.error("Unable to write transferred data", e);
             return false;
         }
     }
 
     public boolean removeExtraData(String lowerRange, String upperRange) {
-        File folder = new File(path);
-        Boolean deleted = true;
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory() || keyInRange(fileEntry.getName(), lowerRange, upperRange)) {
-                System.out.println("Ignoring directory");
+        try {
+            long ticket = 0;
+            Iterator<String> keys = index.iterateOutsideRange(lowerRange, upperRange);
+            while (keys.hasNext()) {
+                ticket = apply(WriteAheadLog.OP_DELETE, keys.next(), null);
+                checkpointIfNeeded();
+            }
+            wal.sync(ticket);
+            return true;
+        } catch (IOException e) {
+            logger.error("Unable to remove data outside of " + lowerRange + "," + upperRange, e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the key index snapshot so the next start does not have to
+     * rebuild it from the directory.
+     */
+    public void close() {
+        try {
+            wal.close();
+        } catch (IOException e) {
+            logger.error("Unable to close write-ahead log of " + path, e);
+        }
+        try {
+            index.close();
+        } catch (IOException e) {
+            logger.error("Unable to write key index of " + path, e);
+        }
+    }
+
+    //////////////////// ITERATOR HELPERS ////////////////////
+
+    protected static HashMap<String, String> drain(Iterator<Map.Entry<String, String>> entries) throws IOException {
+        HashMap<String, String> map = new HashMap<String, String>();
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                map.put(entry.getKey(), entry.getValue());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return map;
+    }
+
+    /**
+     * Pairs each key with its value, read through {@link #get} only when the
+     * iterator reaches it. Keys deleted in the meantime are skipped.
+     */
+    protected class StoredValues implements Iterator<Map.Entry<String, String>> {
+        private final Iterator<String> keys;
+        private Map.Entry<String, String> next;
+
+        protected StoredValues(Iterator<String> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                String key = keys.next();
+                try {
+                    next = new AbstractMap.SimpleImmutableEntry<>(key, get(key));
+                } catch (IOException e) {
+                    if (inStorage(key)) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> current = next;
+            next = null;
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    //////////////////// WRITE-AHEAD LOG HELPERS ////////////////////
+
+    /**
+     * Logs the write, then applies it to the key file and the index.
+     *
+     * @return the write-ahead log ticket of the write
+     */
+    private long apply(byte op, String key, String value) throws IOException {
+        checkpointLock.readLock().lock();
+        try {
+            long ticket = wal.append(op, key, value);
+            if (op == WriteAheadLog.OP_PUT) {
+                writeFile(key, value);
             } else {
-                System.out.println("Deleting " + fileEntry.getName());
-                deleted = deleted && fileEntry.delete();
+                deleteFile(key);
             }
+            unsynced.add(key);
+            return ticket;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    private void writeFile(String key, String value) throws IOException {
+        Files.write(FileSystems.getDefault().getPath(path, key), compression.encode(value));
+        index.add(key);
+    }
+
+    private void deleteFile(String key) throws IOException {
+        Files.deleteIfExists(FileSystems.getDefault().getPath(path, key));
+        index.remove(key);
+    }
+
+    /**
+     * Redoes the logged writes, some of which may not have reached their key
+     * files before the server went down.
+     */
+    private void recover() throws IOException {
+        int replayed = wal.replay(new WriteAheadLog.Visitor() {
+            @Override
+            public void put(String key, String value) throws IOException {
+                writeFile(key, value);
+                unsynced.add(key);
+            }
+
+            @Override
+            public void delete(String key) throws IOException {
+                deleteFile(key);
+                unsynced.add(key);
+            }
+        });
+        if (replayed > 0) {
+            logger.info("Replayed " + replayed + " write-ahead log record(s) in " + path);
+            checkpoint();
+        }
+    }
+
+    private void checkpointIfNeeded() throws IOException {
+        if (wal.size() >= CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Syncs every key file written since the last checkpoint and the
+     * directory itself, then empties the log.
+     */
+    private void checkpoint() throws IOException {
+        checkpointLock.writeLock().lock();
+        try {
+            if (syncMode != WriteAheadLog.SyncMode.NONE) {
+                for (String key : unsynced) {
+                    force(new File(path, key));
+                }
+                try {
+                    force(new File(path));
+                } catch (IOException e) {
+                    // not every platform can sync a directory
+                    logger.debug("Unable to sync directory " + path, e);
+                }
+            }
+            unsynced.clear();
+            wal.reset();
+        } finally {
+            checkpointLock.writeLock().unlock();
         }
-        return deleted;
     }
+
+    private static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (NoSuchFileException e) {
+            // deleted since, the directory sync covers it
+        }
+    }
+
     // Used in testing
     public static void main(String[] args) {
     }
@@ -0,0 +1,109 @@
+package app_kvServer.persistence;
+
+import app_kvServer.IKVServer.StorageType;
+import app_kvServer.persistence.WriteAheadLog.SyncMode;
+
+/**
+ * Storage engine settings, filled in from the KVServer command line.
+ */
+public class StorageOptions {
+
+    private StorageType type = StorageType.FILE;
+
+    private double bloomFalsePositiveRate = LSMStorage.DEFAULT_FALSE_POSITIVE_RATE;
+
+    private SyncMode walSyncMode = SyncMode.INTERVAL;
+
+    private long walSyncIntervalMillis = 100;
+
+    private ICompressionCodec compressionCodec;
+
+    private int compressionThreshold = ValueCompression.DEFAULT_THRESHOLD;
+
+    public StorageType getType() {
+        return type;
+    }
+
+    public void setType(StorageType type) {
+        this.type = type;
+    }
+
+    public double getBloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    /**
+     * @param bloomFalsePositiveRate false positive rate of the bloom filters
+     *                               kept for every LSM table, between 0 and 1
+     */
+    public void setBloomFalsePositiveRate(double bloomFalsePositiveRate) {
+        if (bloomFalsePositiveRate <= 0 || bloomFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Bloom filter false positive rate must be between 0 and 1");
+        }
+        this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+    }
+
+    public SyncMode getWalSyncMode() {
+        return walSyncMode;
+    }
+
+    public void setWalSyncMode(SyncMode walSyncMode) {
+        this.walSyncMode = walSyncMode;
+    }
+
+    /**
+     * @param walSyncMode one of "none", "interval" or "every-batch", case insensitive
+     */
+    public void setWalSyncMode(String walSyncMode) {
+        this.walSyncMode = SyncMode.valueOf(walSyncMode.toUpperCase().replace('-', '_'));
+    }
+
+    public long getWalSyncIntervalMillis() {
+        return walSyncIntervalMillis;
+    }
+
+    /**
+     * @param walSyncIntervalMillis time between background fsyncs of the
+     *                              write-ahead log in {@link SyncMode#INTERVAL} mode
+     */
+    public void setWalSyncIntervalMillis(long walSyncIntervalMillis) {
+        if (walSyncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Write-ahead log sync interval must be positive");
+        }
+        this.walSyncIntervalMillis = walSyncIntervalMillis;
+    }
+
+    /**
+     * @return the codec for new values, or null if they are stored uncompressed
+     */
+    public ICompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public void setCompressionCodec(ICompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    /**
+     * @param compressionCodec "none" or the name of a codec registered with
+     *                         {@link ValueCompression}, such as "deflate"
+     */
+    public void setCompressionCodec(String compressionCodec) {
+        this.compressionCodec = ValueCompression.codecForName(compressionCodec);
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold size in bytes below which values are stored
+     *                             uncompressed, as compressing them saves little
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Compression threshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+}
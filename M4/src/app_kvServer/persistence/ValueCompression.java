@@ -0,0 +1,159 @@
+package app_kvServer.persistence;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns values into the bytes an engine stores and back, compressing values
+ * of at least {@code threshold} bytes with the configured codec.
+ * <p>
+ * Values are compressed one record at a time. A compressed value is stored as
+ * {@code [magic][codec id][raw length][compressed bytes]}; anything else is
+ * plain UTF-8, so data written before compression was enabled stays readable
+ * and small values pay nothing. Which codec wrote a value is stored with it,
+ * so decoding never depends on the current settings.
+ */
+public class ValueCompression {
+
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    /** Starts with a NUL byte, which text values from clients never do. */
+    private static final byte[] MAGIC = {0, 'K', 'V', 'Z'};
+
+    /** Codec id of a value that merely starts with {@link #MAGIC}. */
+    private static final byte RAW = 0;
+
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    private static final Map<Byte, ICompressionCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    /** Stores every value as plain UTF-8. */
+    public static final ValueCompression NONE = new ValueCompression(null, DEFAULT_THRESHOLD);
+
+    private final ICompressionCodec codec;
+
+    private final int threshold;
+
+    /**
+     * @param codec     codec for new values, null to store them uncompressed
+     * @param threshold size in bytes below which values are stored uncompressed
+     */
+    public ValueCompression(ICompressionCodec codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    public static ValueCompression fromOptions(StorageOptions options) {
+        if (options.getCompressionCodec() == null) {
+            return NONE;
+        }
+        return new ValueCompression(options.getCompressionCodec(), options.getCompressionThreshold());
+    }
+
+    /**
+     * Make a codec available for decoding and for selection by name.
+     */
+    public static void register(ICompressionCodec codec) {
+        if (codec.getId() <= RAW) {
+            throw new IllegalArgumentException("Codec id must be positive");
+        }
+        codecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * @param name codec name, or "none" for no compression
+     * @return the registered codec, or null for "none"
+     */
+    public static ICompressionCodec codecForName(String name) {
+        if (name.equalsIgnoreCase("none")) {
+            return null;
+        }
+        for (ICompressionCodec codec : codecs.values()) {
+            if (codec.getName().equalsIgnoreCase(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + name);
+    }
+
+    public byte[] encode(String value) {
+        byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+        if (codec != null && raw.length >= threshold) {
+            byte[] compressed = codec.compress(raw);
+            if (compressed.length + HEADER_SIZE < raw.length) {
+                return frame(codec.getId(), raw.length, compressed);
+            }
+        }
+        if (hasMagic(ByteBuffer.wrap(raw))) {
+            return frame(RAW, raw.length, raw);
+        }
+        return raw;
+    }
+
+    public static String decode(byte[] stored) throws IOException {
+        return decode(ByteBuffer.wrap(stored));
+    }
+
+    /**
+     * Decode the remaining bytes of the buffer. Plain values are decoded in
+     * place without copying them first.
+     */
+    public static String decode(ByteBuffer stored) throws IOException {
+        if (!hasMagic(stored)) {
+            return StandardCharsets.UTF_8.decode(stored).toString();
+        }
+        ByteBuffer buffer = stored.duplicate();
+        buffer.position(buffer.position() + MAGIC.length);
+        byte id = buffer.get();
+        int rawLength = buffer.getInt();
+        if (id == RAW) {
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        }
+        ICompressionCodec valueCodec = codecs.get(id);
+        if (valueCodec == null) {
+            throw new IOException("Value compressed with unknown codec " + id);
+        }
+        byte[] compressed = new byte[buffer.remaining()];
+        buffer.get(compressed);
+        return new String(valueCodec.decompress(compressed, rawLength), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {@link #decode(byte[])} for iterators, which cannot throw IOException.
+     */
+    static String decodeUnchecked(byte[] stored) {
+        try {
+            return decode(stored);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private static boolean hasMagic(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] frame(byte id, int rawLength, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.put(MAGIC).put(id).putInt(rawLength).put(payload);
+        return buffer.array();
+    }
+}
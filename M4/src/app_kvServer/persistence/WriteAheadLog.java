@@ -0,0 +1,289 @@
+package app_kvServer.persistence;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log used by the storage engines. A PUT or DELETE is appended
+ * here before the engine applies it, and the log is replayed on startup to
+ * redo whatever had not safely reached its final place on disk.
+ *
+ * How long a write takes to become durable depends on the {@link SyncMode}.
+ * With EVERY_BATCH a writer waits for an fsync covering its record, but
+ * writers that arrive while an fsync is running are all covered by the next
+ * one, so concurrent writers share fsyncs ({@link GroupCommit}).
+ *
+ * Record layout: [crc32 (4)][op (1)][key length (4)][value length (4)][key][value]
+ * where the checksum covers everything after it.
+ */
+public class WriteAheadLog {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public enum SyncMode {
+        /** Never fsynced. Survives a server crash, not a power loss. */
+        NONE,
+        /** Fsynced in the background every sync interval. Writes are acknowledged before they are durable. */
+        INTERVAL,
+        /** Writes are acknowledged once fsynced, with concurrent writers sharing an fsync. */
+        EVERY_BATCH
+    }
+
+    /**
+     * Receives the records of a log being replayed, oldest first.
+     */
+    public interface Visitor {
+        void put(String key, String value) throws IOException;
+
+        void delete(String key) throws IOException;
+    }
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_DELETE = 2;
+
+    private static final int HEADER_SIZE = 13;
+
+    private final File file;
+    private final FileChannel channel;
+    private final SyncMode mode;
+    private final GroupCommit commit;
+
+    /** A lock rather than a monitor, so writers blocked on the file do not pin the carriers of virtual threads. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Bytes in the file. Guarded by lock. */
+    private long size;
+
+    /**
+     * Bytes ever appended, including those dropped by {@link #reset()}.
+     * Tickets handed out by {@link #append} are positions in this sequence.
+     */
+    private volatile long appended;
+
+    private volatile boolean closed;
+
+    private WriteAheadLog(File file, SyncMode mode, long syncIntervalMillis) throws IOException {
+        this.file = file;
+        this.mode = mode;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.size = channel.size();
+        this.appended = size;
+        this.commit = new GroupCommit("write-ahead log " + file.getName(), mode, syncIntervalMillis, size) {
+            @Override
+            protected long appended() {
+                return appended;
+            }
+
+            @Override
+            protected void force() throws IOException {
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // closed or deleted underneath us, both of which make the records durable
+                    if (!closed) {
+                        throw e;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens the log in the given file, creating it if needed. Existing records
+     * are kept; use {@link #replay} to read them back.
+     */
+    public static WriteAheadLog open(File file, SyncMode mode, long syncIntervalMillis) throws IOException {
+        return new WriteAheadLog(file, mode, syncIntervalMillis);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Passes every intact record to the visitor. A record cut short or
+     * garbled by a crash can only be the last one, so the log is truncated there.
+     *
+     * @return the number of records replayed
+     */
+    public int replay(Visitor visitor) throws IOException {
+        lock.lock();
+        try {
+            long offset = 0;
+            int count = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (offset + HEADER_SIZE <= size) {
+                    int crc = in.readInt();
+                    byte op = in.readByte();
+                    int keyLength = in.readInt();
+                    int valueLength = in.readInt();
+                    if ((op != OP_PUT && op != OP_DELETE) || keyLength < 0 || valueLength < 0
+                            || offset + HEADER_SIZE + keyLength + valueLength > size) {
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    byte[] value = new byte[valueLength];
+                    in.readFully(key);
+                    in.readFully(value);
+                    if (crc != checksum(op, key, value)) {
+                        break;
+                    }
+                    if (op == OP_PUT) {
+                        visitor.put(new String(key, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+                    } else {
+                        visitor.delete(new String(key, StandardCharsets.UTF_8));
+                    }
+                    offset += HEADER_SIZE + keyLength + valueLength;
+                    count++;
+                }
+            } catch (EOFException e) {
+                // the file ended inside a record
+            }
+            if (offset < size) {
+                logger.warn("Truncating incomplete record at offset " + offset + " of " + file.getName());
+                channel.truncate(offset);
+                size = offset;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record without waiting for it to become durable.
+     *
+     * @param value ignored for {@link #OP_DELETE}
+     * @return a ticket to pass to {@link #sync(long)}
+     */
+    public long append(byte op, String key, String value) throws IOException {
+        lock.lock();
+        try {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = value == null || op == OP_DELETE ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+            record.putInt(checksum(op, keyBytes, valueBytes)).put(op)
+                    .putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+            record.flip();
+            while (record.hasRemaining()) {
+                size += channel.write(record, size);
+            }
+            appended += record.limit();
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * With {@link SyncMode#EVERY_BATCH}, blocks until the record behind the
+     * ticket has been fsynced. Returns at once in the other modes.
+     */
+    public void sync(long ticket) throws IOException {
+        commit.sync(ticket);
+    }
+
+    /**
+     * Waits for every record appended so far, see {@link #sync(long)}.
+     */
+    public void syncAll() throws IOException {
+        commit.syncAll();
+    }
+
+    /**
+     * @return bytes currently in the log file
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every record. Only call this once the engine has made the
+     * records durable elsewhere, since they will not be replayed anymore.
+     */
+    public void reset() throws IOException {
+        lock.lock();
+        try {
+            channel.truncate(0);
+            size = 0;
+            commit.markSynced(appended);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Syncs (unless the mode is NONE) and closes the log, keeping the file.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (mode != SyncMode.NONE) {
+                channel.force(false);
+            }
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+        commit.close();
+    }
+
+    /**
+     * Closes the log and deletes its file. Only call this once the engine
+     * has made the records durable elsewhere.
+     */
+    public boolean delete() {
+        lock.lock();
+        try {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Unable to close write-ahead log " + file.getName(), e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        commit.close();
+        try {
+            return Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            logger.error("Unable to delete write-ahead log " + file.getName(), e);
+            return false;
+        }
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private static int checksum(byte op, byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+}
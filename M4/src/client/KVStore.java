@@ -3,16 +3,21 @@ package client;
 import org.apache.commons.codec.digest.DigestUtils;
 import shared.messages.IKVMessage;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
+import shared.messages.BinaryProtocol;
 import shared.messages.KVMessage;
+import shared.messages.MessageFramer;
 
 public class KVStore implements KVCommInterface {
 
@@ -22,14 +27,26 @@ public class KVStore implements KVCommInterface {
 	private int port;
 	private HashMap<String, String> metadata;
 
-	private BufferedInputStream input;
+	private MessageFramer input;
 	private BufferedOutputStream output;
 	private Socket socket;
 
-	private int BUFFER_SIZE = 120100;
-	private int DROP_SIZE = 128 * BUFFER_SIZE;
+	private int DROP_SIZE = 128 * 120100;
 
 	private boolean isConnected = false;
+
+	/**
+	 * Whether to ask servers for BinaryProtocol frames when connecting. Off
+	 * by default, the text protocol splits a key at its first blank, which
+	 * the CLI relies on.
+	 */
+	private boolean binaryProtocol = false;
+	/** Whether the current connection uses them. */
+	private boolean binary;
+
+	/** Requests sent by submit() awaiting their response, by request id. */
+	private final Map<Integer, CompletableFuture<KVMessage>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger lastRequestId = new AtomicInteger();
 	private KVMessage retryCache;
 
 	private ArrayList<String> subscriptions;
@@ -49,9 +66,15 @@ public class KVStore implements KVCommInterface {
 	@Override
 	public void connect() throws Exception {
 		try {
-			this.socket = new Socket(this.address, this.port);
-			this.input = new BufferedInputStream(this.socket.getInputStream());
-			this.output = new BufferedOutputStream(this.socket.getOutputStream());
+			Socket socket = new Socket(this.address, this.port);
+			MessageFramer input = new MessageFramer(socket.getInputStream(), DROP_SIZE);
+			BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream());
+			// negotiated before run() can read from the new connection
+			boolean binary = this.binaryProtocol && BinaryProtocol.negotiate(output, input);
+			this.socket = socket;
+			this.input = input;
+			this.output = output;
+			this.binary = binary;
 			this.isConnected = true;
 		} catch (Exception e) {
 			this.isConnected = false;
@@ -61,6 +84,12 @@ public class KVStore implements KVCommInterface {
 
 	@Override
 	public void disconnect() {
+		for (Integer requestId : this.pending.keySet()) {
+			CompletableFuture<KVMessage> response = this.pending.remove(requestId);
+			if (response != null) {
+				response.completeExceptionally(new IOException("Disconnected before the response arrived"));
+			}
+		}
 		try {
 			this.isConnected = false;
 			if (this.socket != null) {
@@ -87,6 +116,22 @@ public class KVStore implements KVCommInterface {
 		return subscriptions;
 	}
 
+	/**
+	 * @param binaryProtocol whether later connections ask for the binary
+	 *                       protocol; servers that do not speak it are
+	 *                       talked to in text either way
+	 */
+	public void setBinaryProtocol(boolean binaryProtocol) {
+		this.binaryProtocol = binaryProtocol;
+	}
+
+	/**
+	 * @return whether the current connection uses the binary protocol
+	 */
+	public boolean isBinary() {
+		return this.binary;
+	}
+
 	public boolean getIsConnected() {
 		return this.isConnected;
 	}
@@ -286,83 +331,77 @@ public class KVStore implements KVCommInterface {
 	 * @param msg the message that is to be sent.
 	 * @throws IOException some I/O error regarding the output stream
 	 */
-	public void sendMessage(IKVMessage msg) throws IOException {
-		byte[] msgBytes = msg.getMessageBytes();
+	public synchronized void sendMessage(IKVMessage msg) throws IOException {
+		byte[] msgBytes = this.binary ? BinaryProtocol.encode(msg) : msg.getMessageBytes();
 //		System.out.println(Arrays.toString(msgBytes));
 		this.output.write(msgBytes, 0, msgBytes.length);
 		this.output.flush();
 		logger.info("Send message:\t '" + msg.getMessage().substring(0, msg.getMessage().length() - 2) + "'");
 	}
 
-	public KVMessage receiveMessage() throws IOException {
-
-		int index = 0;
-		byte[] msgBytes = null, tmp = null;
-		byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-		/* read first char from stream */
-		byte read = (byte) input.read();
-		boolean reading = true;
-		if (read == 13 || read == 10) {
-			read = (byte) input.read();
+	/**
+	 * Sends a request without waiting for the responses to earlier ones, so
+	 * many requests can be in flight on one connection. The response is
+	 * matched to the request by its id, and completes the returned future
+	 * when read by {@link #run()} or {@link #receiveMessage()}.
+	 *
+	 * @throws IllegalStateException if the connection does not use the
+	 *      binary protocol, the text protocol carries no request ids
+	 */
+	public Future<KVMessage> submit(KVMessage request) throws IOException {
+		if (!this.binary) {
+			throw new IllegalStateException("Pipelining needs the binary protocol");
 		}
+		int requestId = this.lastRequestId.incrementAndGet();
+		if (requestId == 0) {
+			// 0 marks messages the server sends unasked
+			requestId = this.lastRequestId.incrementAndGet();
+		}
+		request.setRequestId(requestId);
+		CompletableFuture<KVMessage> response = new CompletableFuture<>();
+		this.pending.put(requestId, response);
+		try {
+			sendMessage(request);
+		} catch (IOException e) {
+			this.pending.remove(requestId);
+			throw e;
+		}
+		return response;
+	}
 
-		while(read != 13 && read !=-1 && reading) {/* CR, LF, error */
-			/* if buffer filled, copy to msg array */
-			if(index == BUFFER_SIZE) {
-				if(msgBytes == null){
-					tmp = new byte[BUFFER_SIZE];
-					System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-				} else {
-					tmp = new byte[msgBytes.length + BUFFER_SIZE];
-					System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-					System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-							BUFFER_SIZE);
-				}
-
-				msgBytes = tmp;
-				bufferBytes = new byte[BUFFER_SIZE];
-				index = 0;
-			}
-
-			/* only read valid characters, i.e. letters and constants */
-			bufferBytes[index] = read;
-			index++;
-
-			/* stop reading is DROP_SIZE is reached */
-			if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-				reading = false;
-			}
+	/**
+	 * @return the number of submitted requests not answered yet
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
 
-			/* read next char from stream */
-			read = (byte) input.read();
-		}
+	public KVMessage receiveMessage() throws IOException {
+		KVMessage msg = readMessage();
+		completeRequest(msg);
+		return msg;
+	}
 
-		if (read == -1) {
-			throw new IOException();
+	/**
+	 * @return whether the message answered a submitted request, whose
+	 *      future it completed
+	 */
+	private boolean completeRequest(KVMessage msg) {
+		if (msg.getRequestId() == 0) {
+			return false;
 		}
-
-		if(msgBytes == null){
-			tmp = new byte[index];
-			System.arraycopy(bufferBytes, 0, tmp, 0, index);
-		} else {
-			tmp = new byte[msgBytes.length + index];
-			System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-			System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+		CompletableFuture<KVMessage> response = this.pending.remove(msg.getRequestId());
+		if (response == null) {
+			return false;
 		}
+		response.complete(msg);
+		return true;
+	}
 
-		msgBytes = tmp;
-//		logger.info(Arrays.toString(msgBytes));
-		KVMessage msg;
-		/* build final String */
-		// TODO: isOpen? what's this for
-//		if (msgBytes.length == 0) {
-//			isOpen = false;
-//		}
-		try {
-			msg = new KVMessage(msgBytes);
-		} catch (Exception e) {
-			msg = new KVMessage(KVMessage.StatusType.FAILED, "Error");
+	private KVMessage readMessage() throws IOException {
+		KVMessage msg = input.nextMessage();
+		if (msg == null) {
+			throw new IOException();
 		}
 //		System.out.println("RECEIVE \t<"
 //				+ this.address + ":"
@@ -376,9 +415,12 @@ public class KVStore implements KVCommInterface {
 		while (true) {
 			if (this.isConnected) {
 				try {
-					KVMessage received = receiveMessage();
+					KVMessage received = readMessage();
 //					System.out.println(received.getMessage());
-					handleMessage(received);
+					// a submitted request's response belongs to its future, not to the shell
+					if (!completeRequest(received)) {
+						handleMessage(received);
+					}
 				} catch (IOException ioe) {
 					// TODO: socket closed
 //					if (this.isConnected) {
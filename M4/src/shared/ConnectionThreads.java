@@ -0,0 +1,60 @@
+package shared;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking connection handlers one thread per connection, on virtual
+ * threads when the runtime has them (Java 21 and later). The virtual thread
+ * API is looked up by reflection, so the code still builds and runs on
+ * older runtimes, which fall back to a cached pool of platform threads.
+ */
+public final class ConnectionThreads {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private ConnectionThreads() {
+    }
+
+    /**
+     * @param name prefix of the thread names, followed by a counter
+     * @return an executor starting a thread for every task
+     */
+    public static ExecutorService newPerConnectionExecutor(final String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 or later, using platform threads for " + name);
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + count.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * @return whether {@link #newPerConnectionExecutor} starts virtual threads
+     */
+    public static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package shared.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Version 2 of the wire protocol: length prefixed binary frames instead of
+ * CR LF terminated text, so keys and values may hold any character, a
+ * message is not cut at the text protocol's drop size, and decoding needs
+ * no regex split.
+ * <p>
+ * A frame is a {@link #HEADER_SIZE} byte header, big endian, followed by
+ * the UTF-8 key and value:
+ * <pre>
+ * opcode        1 byte   ordinal of the message's StatusType
+ * flags         1 byte   FLAG_KEY, FLAG_VALUE, FLAG_MORE
+ * request id    4 bytes  echoed in the response, 0 in unsolicited messages
+ * key length    4 bytes
+ * value length  4 bytes
+ * </pre>
+ * A message can be split over several frames, all but the last with
+ * FLAG_MORE set, whose keys and values are concatenated. Large transfers
+ * are streamed that way, see {@link #keyStream}.
+ * <p>
+ * The connecting side asks for frames by sending {@link #HANDSHAKE} as its
+ * first text message. A server that speaks version 2 answers with the same
+ * bytes and both sides switch to frames; an older one answers FAILED and
+ * the connection stays on text. Clients that never ask, such as a telnet
+ * session, keep the text protocol.
+ */
+public final class BinaryProtocol {
+
+    public static final int HEADER_SIZE = 14;
+
+    static final int FLAG_KEY = 1;
+    static final int FLAG_VALUE = 2;
+    static final int FLAG_MORE = 4;
+
+    /** Payload of the frames a streamed message is cut into. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /** A text message no version of the text protocol parses. */
+    private static final byte[] MAGIC = {0, 'K', 'V', '2'};
+
+    /** The magic as a text message, ended by a CR only, as the answer is read before switching. */
+    public static final byte[] HANDSHAKE = {0, 'K', 'V', '2', 13};
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @param frame a text message without its CR
+     */
+    public static boolean isHandshake(ByteBuffer frame) {
+        return frame.equals(ByteBuffer.wrap(MAGIC));
+    }
+
+    /**
+     * Asks the other side for frames and switches the framer to them if it
+     * agrees. Must be called before anything else is sent or received.
+     *
+     * @return true if the connection now uses frames
+     */
+    public static boolean negotiate(OutputStream output, MessageFramer input) throws IOException {
+        output.write(HANDSHAKE);
+        output.flush();
+        ByteBuffer answer = input.next();
+        if (answer == null) {
+            throw new IOException("Connection closed during the protocol handshake");
+        }
+        boolean binary = isHandshake(answer);
+        input.setBinary(binary);
+        return binary;
+    }
+
+    /**
+     * Measures the message at the start of the bytes, with every frame it is
+     * streamed in, for readers that cannot block until it is whole.
+     *
+     * @param maxLength the longest message the reader accepts
+     * @return the length of the message, or -1 if it is not all there yet
+     * @throws IOException if a frame header is malformed or the headers read
+     *      so far announce more than maxLength bytes
+     */
+    public static int messageLength(byte[] bytes, int offset, int length, int maxLength) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length).slice();
+        int position = 0;
+        while (length - position >= HEADER_SIZE) {
+            int flags = buffer.get(position + 1);
+            int keyLength = buffer.getInt(position + 6);
+            int valueLength = buffer.getInt(position + 10);
+            if (keyLength < 0 || valueLength < 0
+                    || (long) keyLength + valueLength > Integer.MAX_VALUE - HEADER_SIZE - position) {
+                throw new IOException("Malformed frame");
+            }
+            position += HEADER_SIZE + keyLength + valueLength;
+            if (position > maxLength) {
+                throw new IOException("Message longer than " + maxLength + " bytes");
+            }
+            if (position > length) {
+                return -1;
+            }
+            if ((flags & FLAG_MORE) == 0) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the message as one frame
+     */
+    public static byte[] encode(IKVMessage msg) {
+        int arity;
+        if (msg instanceof KVMessage) {
+            arity = ((KVMessage) msg).getArity();
+        } else {
+            arity = msg.getValue() != null ? 3 : msg.getKey() != null ? 2 : 1;
+        }
+        byte[] key = arity >= 2 ? String.valueOf(msg.getKey()).getBytes(StandardCharsets.UTF_8) : null;
+        byte[] value = arity == 3 ? String.valueOf(msg.getValue()).getBytes(StandardCharsets.UTF_8) : null;
+        int keyLength = key == null ? 0 : key.length;
+        int valueLength = value == null ? 0 : value.length;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + keyLength + valueLength);
+        int flags = (key == null ? 0 : FLAG_KEY) | (value == null ? 0 : FLAG_VALUE);
+        int requestId = msg instanceof KVMessage ? ((KVMessage) msg).getRequestId() : 0;
+        putHeader(frame, msg.getStatus(), flags, requestId, keyLength, valueLength);
+        if (key != null) {
+            frame.put(key);
+        }
+        if (value != null) {
+            frame.put(value);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Streams a message whose key is written to the returned stream, such
+     * as the key-value pairs of a transfer, in frames of at most
+     * {@link #CHUNK_SIZE} bytes. Closing the stream sends the last frame
+     * but leaves the output open.
+     */
+    public static OutputStream keyStream(final OutputStream output, final IKVMessage.StatusType status) {
+        return new OutputStream() {
+            private final byte[] chunk = new byte[CHUNK_SIZE];
+            private int size;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (size == chunk.length) {
+                    send(true);
+                }
+                chunk[size++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (size == chunk.length) {
+                        send(true);
+                    }
+                    int n = Math.min(len, chunk.length - size);
+                    System.arraycopy(b, off, chunk, size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                send(false);
+            }
+
+            private void send(boolean more) throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                putHeader(header, status, FLAG_KEY | (more ? FLAG_MORE : 0), 0, size, 0);
+                output.write(header.array());
+                output.write(chunk, 0, size);
+                size = 0;
+            }
+        };
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    private static void putHeader(ByteBuffer frame, IKVMessage.StatusType status, int flags, int requestId,
+                                  int keyLength, int valueLength) {
+        frame.put((byte) status.ordinal());
+        frame.put((byte) flags);
+        frame.putInt(requestId);
+        frame.putInt(keyLength);
+        frame.putInt(valueLength);
+    }
+}
@@ -26,7 +26,8 @@ public interface IKVMessage {
 		LAST_ONE, /*SENT BY ECS TO LISTENER WHEN THE SERVER REQUESTING SHUTDOWN IS THE LAST ONE*/
 		SERV_INIT, /* MESSAGE FROM INITIALIZING SERVER CONTAINING ITS CLIENT LISTENER IP AND PORT AS KEY AND VALUE RESPECTIVELY */
 		KEYRANGE,  /*SENT BY CLIENT TO REQUEST UPDATED METADATA FROM A KVSERVER*/
-		PUT_R, GET_R, REPLICATE, KEYRANGE_READ, KEYRANGE_READ_SUCCESS, QUIET_KEYRANGE, BROADCAST_UPDATE, BROADCAST_DELETE
+		PUT_R, GET_R, REPLICATE, KEYRANGE_READ, KEYRANGE_READ_SUCCESS, QUIET_KEYRANGE, BROADCAST_UPDATE, BROADCAST_DELETE,
+		STATS /* ADMIN REQUEST FOR CACHE STATISTICS, ANSWERED WITH "STATS cache <statistics>" */
 	}
 
 	/**
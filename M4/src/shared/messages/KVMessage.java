@@ -6,7 +6,14 @@ public class KVMessage implements IKVMessage {
     private String value;
     private StatusType status;
 
-    private byte[] messageBytes;
+    /** Text form, built on first use, as binary connections never need it. */
+    private volatile byte[] messageBytes;
+
+    /** Parts of the text form: the status, then the key, then the value. */
+    private int arity;
+
+    /** Matches a response to its request, 0 if unset. Only sent in binary frames. */
+    private int requestId;
 
     private static final char LINE_FEED = 0x0A;
     private static final char RETURN = 0x0D;
@@ -21,7 +28,7 @@ public class KVMessage implements IKVMessage {
         this.key = key;
         this.value = value;
         this.status = status;
-        this.messageBytes = toByteArray(status.toString() + " " + key + " " + value);
+        this.arity = 3;
     }
 
     /**
@@ -32,7 +39,7 @@ public class KVMessage implements IKVMessage {
     public KVMessage(StatusType status, String key) {
         this.status = status;
         this.key = key;
-        this.messageBytes = toByteArray(status.toString() + " " + key);
+        this.arity = 2;
     }
 
     /**
@@ -40,15 +47,27 @@ public class KVMessage implements IKVMessage {
      * @param messageBytes a UTF-8 encoded byte array representing the message
      */
     public KVMessage(byte[] messageBytes) {
+        this(messageBytes, 0, messageBytes.length);
+    }
+
+    /**
+     * Constructor for KVMessage from a slice of a byte array, as handed out
+     * by {@link MessageFramer}. The slice is copied, the array can be reused.
+     * @param buffer the array holding the UTF-8 encoded message
+     * @param offset start of the message in the array
+     * @param length length of the message, without its CR LF
+     */
+    public KVMessage(byte[] buffer, int offset, int length) {
 
         byte[] ctrBytes = new byte[]{RETURN, LINE_FEED};
-        byte[] tmp = new byte[messageBytes.length + ctrBytes.length];
+        byte[] tmp = new byte[length + ctrBytes.length];
 
-        System.arraycopy(messageBytes, 0, tmp, 0, messageBytes.length);
-        System.arraycopy(ctrBytes, 0, tmp, messageBytes.length, ctrBytes.length);
+        System.arraycopy(buffer, offset, tmp, 0, length);
+        System.arraycopy(ctrBytes, 0, tmp, length, ctrBytes.length);
         this.messageBytes = tmp;
 
-        String[] argsArray = messageBytesToArgsArray(messageBytes);
+        String[] argsArray = messageBytesToArgsArray(tmp, length);
+        this.arity = argsArray.length;
         if (argsArray[0].substring(argsArray[0].length() - 2).compareTo("\r\n") == 0) {
             argsArray[0] = argsArray[0].substring(0, argsArray[0].length() - 2);
         }
@@ -66,7 +85,7 @@ public class KVMessage implements IKVMessage {
 
     public KVMessage(StatusType status) {
         this.status = status;
-        this.messageBytes = toByteArray(status.toString());
+        this.arity = 1;
     }
 
     @Override
@@ -86,19 +105,48 @@ public class KVMessage implements IKVMessage {
 
     @Override
     public byte[] getMessageBytes() {
+        if (this.messageBytes == null) {
+            String text = status.toString();
+            if (arity >= 2) {
+                text += " " + key;
+            }
+            if (arity == 3) {
+                text += " " + value;
+            }
+            this.messageBytes = toByteArray(text);
+        }
         return this.messageBytes;
     }
 
     @Override
     public String getMessage() {
-        return new String(this.messageBytes);
+        return new String(getMessageBytes());
+    }
+
+    public int getRequestId() {
+        return this.requestId;
+    }
+
+    /**
+     * @param requestId echoed by the server in its response, so a client with
+     *                  several requests outstanding can tell the responses apart
+     */
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * @return 1 for a bare status, 2 with a key, 3 with a key and a value
+     */
+    int getArity() {
+        return this.arity;
     }
 
 //////////////////// METHOD HELPERS ////////////////////
 
-    private String[] messageBytesToArgsArray(byte[] messageBytes) {
+    private String[] messageBytesToArgsArray(byte[] messageBytes, int length) {
         // Parses byte array into String using UTF-8 charset
-        String temp = new String(messageBytes);
+        String temp = new String(messageBytes, 0, length);
         // Splits into arguments, applying space delimiter at most twice
         // https://stackoverflow.com/questions/24748619/split-string-by-whitespaces-removes-new-line-characters
         String[] args = temp.split("[ \\t\\x0B\\f]+", 3);
@@ -0,0 +1,312 @@
+package shared.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cuts a stream of CR LF terminated text messages into messages. Reads into
+ * a reusable buffer as many bytes as the stream has, and finds the CR in
+ * place, instead of one read call per byte and a copy per 1000 bytes.
+ * <p>
+ * Framing matches the loops it replaces: one CR or LF before a message is
+ * skipped, which drops the LF after the previous message's CR, and a
+ * message longer than the maximum size is cut there, the rest read as the
+ * next message. Not thread safe; each connection has its own framer.
+ * <p>
+ * Once switched to binary, {@link #nextMessage()} decodes
+ * {@link BinaryProtocol} frames from the same buffer instead. Those are not
+ * cut: a message longer than the binary limit closes the connection, and
+ * only links that carry transfers, such as the ECS's, leave it unbounded.
+ */
+public class MessageFramer {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private static final byte RETURN = 13;
+    private static final byte LINE_FEED = 10;
+
+    private static final KVMessage.StatusType[] STATUSES = KVMessage.StatusType.values();
+
+    private final InputStream input;
+
+    private final int maxMessageSize;
+
+    private final int maxBinaryMessageSize;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /** Start of the bytes not yet handed out. */
+    private int start;
+
+    /** End of the bytes read from the stream. */
+    private int end;
+
+    private boolean binary;
+
+    /**
+     * @param maxMessageSize longer text messages are cut at this many bytes,
+     *                       binary ones have no limit
+     */
+    public MessageFramer(InputStream input, int maxMessageSize) {
+        this(input, maxMessageSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMessageSize       longer text messages are cut at this many bytes
+     * @param maxBinaryMessageSize reading a binary message longer than this,
+     *                             headers of all its frames included, fails
+     *                             before it is buffered
+     */
+    public MessageFramer(InputStream input, int maxMessageSize, int maxBinaryMessageSize) {
+        this.input = input;
+        this.maxMessageSize = maxMessageSize;
+        this.maxBinaryMessageSize = maxBinaryMessageSize;
+    }
+
+    /**
+     * Reads the frames in place, without copying them.
+     */
+    private MessageFramer(byte[] frames, int offset, int length) {
+        this(new ByteArrayInputStream(new byte[0]), Integer.MAX_VALUE);
+        this.buffer = frames;
+        this.start = offset;
+        this.end = offset + length;
+        this.binary = true;
+    }
+
+    /**
+     * @return the next message without its CR, or null at the end of the
+     *      stream. A view of the framer's buffer, only valid until the next
+     *      call.
+     */
+    public ByteBuffer next() throws IOException {
+        if (start == end && !fill()) {
+            return null;
+        }
+        if (buffer[start] == RETURN || buffer[start] == LINE_FEED) {
+            start++;
+        }
+        int scanned = start;
+        while (true) {
+            int limit = Math.min(end, start + maxMessageSize);
+            for (int i = scanned; i < limit; i++) {
+                if (buffer[i] == RETURN) {
+                    return take(i - start, 1);
+                }
+            }
+            if (limit - start == maxMessageSize) {
+                return take(maxMessageSize, 0);
+            }
+            scanned = limit;
+            int offset = start;
+            if (!fill()) {
+                // the stream ended in the middle of a message
+                return end == start ? null : take(end - start, 0);
+            }
+            scanned -= offset - start;
+        }
+    }
+
+    /**
+     * @return the next message, a FAILED message if it cannot be parsed, or
+     *      null at the end of the stream
+     * @throws IOException also if a binary message is malformed or too long
+     */
+    public KVMessage nextMessage() throws IOException {
+        if (binary) {
+            return nextFrame();
+        }
+        ByteBuffer frame = next();
+        return frame == null ? null : parse(frame);
+    }
+
+    /**
+     * @return whether a whole message is buffered, so the next read returns
+     *      without waiting for the stream. Lets a server hold back its
+     *      responses to pipelined requests and flush them together.
+     */
+    public boolean hasMessage() {
+        int from = start;
+        if (binary) {
+            if (end - from < BinaryProtocol.HEADER_SIZE) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.wrap(buffer, from, BinaryProtocol.HEADER_SIZE).slice();
+            long frameLength = BinaryProtocol.HEADER_SIZE + (long) header.getInt(6) + header.getInt(10);
+            // a streamed message is only known to be whole once its last frame is read
+            return (header.get(1) & BinaryProtocol.FLAG_MORE) == 0 && end - from >= frameLength;
+        }
+        if (from < end && (buffer[from] == RETURN || buffer[from] == LINE_FEED)) {
+            from++;
+        }
+        if (end - from >= maxMessageSize) {
+            return true;
+        }
+        for (int i = from; i < end; i++) {
+            if (buffer[i] == RETURN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Switches between the text protocol and {@link BinaryProtocol} frames,
+     * for the messages following the handshake.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the message in the slice, or a FAILED message if it cannot be
+     *      parsed
+     */
+    public static KVMessage parse(ByteBuffer frame) {
+        try {
+            return new KVMessage(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } catch (Exception e) {
+            return new KVMessage(KVMessage.StatusType.FAILED, "Error");
+        }
+    }
+
+    /**
+     * @param length of the frames of one message, as measured by
+     *               {@link BinaryProtocol#messageLength}
+     * @return the message
+     * @throws IOException if the frames are malformed
+     */
+    public static KVMessage parseBinary(byte[] frames, int offset, int length) throws IOException {
+        return new MessageFramer(frames, offset, length).nextFrame();
+    }
+
+    //////////////////// HELPERS ////////////////////
+
+    /**
+     * Decodes the next message, joining it from several frames if it was
+     * streamed.
+     *
+     * @return the message, or null if the stream ended between messages
+     */
+    private KVMessage nextFrame() throws IOException {
+        ByteArrayOutputStream keyParts = null;
+        ByteArrayOutputStream valueParts = null;
+        int partFlags = 0;
+        long received = 0;
+        while (true) {
+            if (!ensure(BinaryProtocol.HEADER_SIZE)) {
+                if (start == end && keyParts == null) {
+                    return null;
+                }
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            ByteBuffer header = ByteBuffer.wrap(buffer, start, BinaryProtocol.HEADER_SIZE);
+            int opcode = header.get() & 0xff;
+            int flags = header.get();
+            int requestId = header.getInt();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            if (opcode >= STATUSES.length || keyLength < 0 || valueLength < 0
+                    || (long) keyLength + valueLength > Integer.MAX_VALUE - BinaryProtocol.HEADER_SIZE) {
+                throw new IOException("Malformed frame");
+            }
+            int frameLength = BinaryProtocol.HEADER_SIZE + keyLength + valueLength;
+            received += frameLength;
+            if (received > maxBinaryMessageSize) {
+                throw new IOException("Message longer than " + maxBinaryMessageSize + " bytes");
+            }
+            if (!ensure(frameLength)) {
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            int keyStart = start + BinaryProtocol.HEADER_SIZE;
+            start += frameLength;
+            boolean more = (flags & BinaryProtocol.FLAG_MORE) != 0;
+            if (!more && keyParts == null) {
+                KVMessage msg = decode(STATUSES[opcode], flags, buffer, keyStart, keyLength,
+                        buffer, keyStart + keyLength, valueLength);
+                msg.setRequestId(requestId);
+                return msg;
+            }
+            if (keyParts == null) {
+                keyParts = new ByteArrayOutputStream();
+                valueParts = new ByteArrayOutputStream();
+            }
+            keyParts.write(buffer, keyStart, keyLength);
+            valueParts.write(buffer, keyStart + keyLength, valueLength);
+            partFlags |= flags;
+            if (!more) {
+                byte[] key = keyParts.toByteArray();
+                byte[] value = valueParts.toByteArray();
+                KVMessage msg = decode(STATUSES[opcode], partFlags, key, 0, key.length, value, 0, value.length);
+                msg.setRequestId(requestId);
+                return msg;
+            }
+        }
+    }
+
+    private static KVMessage decode(KVMessage.StatusType status, int flags, byte[] keyBytes, int keyOffset,
+                                    int keyLength, byte[] valueBytes, int valueOffset, int valueLength) {
+        if ((flags & BinaryProtocol.FLAG_KEY) == 0) {
+            return new KVMessage(status);
+        }
+        String key = new String(keyBytes, keyOffset, keyLength, StandardCharsets.UTF_8);
+        if ((flags & BinaryProtocol.FLAG_VALUE) == 0) {
+            return new KVMessage(status, key);
+        }
+        return new KVMessage(status, key, new String(valueBytes, valueOffset, valueLength, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads until at least the given number of unread bytes is buffered.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean ensure(int length) throws IOException {
+        while (end - start < length) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer take(int length, int terminator) {
+        ByteBuffer frame = ByteBuffer.wrap(buffer, start, length).slice();
+        start += length + terminator;
+        return frame;
+    }
+
+    /**
+     * Reads more of the stream, first moving the unread bytes to the front
+     * of the buffer, or growing it if they fill it.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, 1)];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+        }
+        int read = input.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+}
@@ -222,6 +222,32 @@ public class AdditionalTest extends TestCase {
 				&& kvMessage.getValue().equals("world"));
 	}
 
+	@Test
+	public void testBinaryProtocol() {
+		KVStore binaryClient = new KVStore("localhost", 50000);
+		binaryClient.setBinaryProtocol(true);
+		String value = "first line\r\nsecond line";
+		IKVMessage response = null;
+		Exception ex = null;
+
+		try {
+			binaryClient.connect();
+			binaryClient.put("binary", value);
+			binaryClient.receiveMessage();
+			binaryClient.get("binary");
+			response = binaryClient.receiveMessage();
+			while (response.getStatus() != IKVMessage.StatusType.GET_SUCCESS) {
+				response = binaryClient.receiveMessage();
+			}
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			binaryClient.disconnect();
+		}
+
+		assertTrue(ex == null && binaryClient.isBinary() && response.getValue().equals(value));
+	}
+
 
 
 }
@@ -83,6 +83,17 @@ public class AllTests {
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class);
 		clientSuite.addTestSuite(AdditionalTest.class);
+		clientSuite.addTestSuite(LogStorageTest.class);
+		clientSuite.addTestSuite(LSMStorageTest.class);
+		clientSuite.addTestSuite(HashRangeIndexTest.class);
+		clientSuite.addTestSuite(WriteAheadLogTest.class);
+		clientSuite.addTestSuite(StorageEngineTest.class);
+		clientSuite.addTestSuite(OffHeapStorageTest.class);
+		clientSuite.addTestSuite(ValueCompressionTest.class);
+		clientSuite.addTestSuite(CacheTest.class);
+		clientSuite.addTestSuite(NioServerTest.class);
+		clientSuite.addTestSuite(MessageFramerTest.class);
+		clientSuite.addTestSuite(PipeliningTest.class);
 
 
 		return clientSuite;
@@ -0,0 +1,515 @@
+package testing;
+
+import app_kvServer.caching.ARCCache;
+import app_kvServer.caching.Cache;
+import app_kvServer.caching.FIFOCache;
+import app_kvServer.caching.LFUCache;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.IKVServer.StorageType;
+import app_kvServer.KVServer;
+import app_kvServer.caching.CacheOptions;
+import app_kvServer.caching.CacheStats;
+import app_kvServer.caching.LRUCache;
+import app_kvServer.caching.NegativeCache;
+import app_kvServer.caching.PartitionedCache;
+import app_kvServer.caching.TinyLFUCache;
+import app_kvServer.caching.Weigher;
+import app_kvServer.caching.WriteBackBuffer;
+import app_kvServer.persistence.StorageOptions;
+import app_kvServer.persistence.Storage;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheTest extends TestCase {
+
+    @Test
+    public void testLRUEvictsLeastRecentlyUsed() {
+        // small enough for a single segment, so eviction order is exact
+        Cache cache = new LRUCache(3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+        assertFalse(cache.inCache("b"));
+        assertTrue(cache.inCache("a"));
+        assertTrue(cache.inCache("c"));
+        assertTrue(cache.inCache("d"));
+    }
+
+    @Test
+    public void testLRUStaysWithinCapacity() {
+        Cache cache = new LRUCache(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        int cached = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.inCache("key" + i)) {
+                cached++;
+                assertEquals("value" + i, cache.get("key" + i));
+            }
+        }
+        assertTrue(cached <= 100);
+        assertTrue(cached > 50);
+        cache.remove("key999");
+        assertNull(cache.get("key999"));
+        cache.clear();
+        assertFalse(cache.inCache("key998"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final Cache cache = new LRUCache(256);
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = "key" + ((i * 31 + id) % 500);
+                        cache.put(key, key);
+                        String value = cache.get(key);
+                        if (value != null && !value.equals(key)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testFIFOAndLFU() {
+        Cache fifo = new FIFOCache(2);
+        fifo.put("a", "1");
+        fifo.put("b", "2");
+        fifo.get("a");
+        fifo.put("c", "3");
+        assertFalse(fifo.inCache("a"));
+        assertTrue(fifo.inCache("b"));
+
+        Cache lfu = new LFUCache(2);
+        lfu.put("a", "1");
+        lfu.put("b", "2");
+        lfu.get("a");
+        lfu.put("c", "3");
+        assertTrue(lfu.inCache("a"));
+        assertFalse(lfu.inCache("b"));
+        assertNull(lfu.get("b"));
+    }
+
+    @Test
+    public void testLFUBreaksTiesByRecency() {
+        Cache lfu = new LFUCache(3);
+        lfu.put("a", "1");
+        lfu.put("b", "2");
+        lfu.put("c", "3");
+        lfu.get("a");
+        lfu.get("b");
+        lfu.get("c");
+        lfu.get("a");
+        // b and c were both used twice, b longer ago
+        lfu.put("d", "4");
+        assertFalse(lfu.inCache("b"));
+        assertTrue(lfu.inCache("c"));
+        // d was used once, so it goes before anything else
+        lfu.put("e", "5");
+        assertFalse(lfu.inCache("d"));
+        assertTrue(lfu.inCache("a"));
+        assertTrue(lfu.inCache("c"));
+    }
+
+    @Test
+    public void testLFUAgesFrequencies() {
+        // counts are halved every 8 * 4 = 32 accesses
+        LFUCache lfu = new LFUCache(4);
+        lfu.put("hot", "1");
+        for (int i = 0; i < 31; i++) {
+            lfu.get("hot");
+        }
+        assertEquals(32, lfu.getFrequency("hot"));
+        lfu.get("hot");
+        assertEquals(16, lfu.getFrequency("hot"));
+
+        // after enough aging a key that is hot now overtakes it
+        lfu.put("new", "2");
+        for (int i = 0; i < 100; i++) {
+            lfu.get("new");
+        }
+        assertTrue(lfu.getFrequency("new") > lfu.getFrequency("hot"));
+        lfu.put("x", "3");
+        lfu.put("y", "4");
+        lfu.put("z", "5");
+        assertTrue(lfu.inCache("new"));
+        assertTrue(lfu.inCache("hot"));
+        assertFalse(lfu.inCache("x"));
+    }
+
+    @Test
+    public void testTinyLFUResistsScans() {
+        Cache tinyLfu = new TinyLFUCache(100);
+        Cache lru = new LRUCache(100);
+        for (Cache cache : new Cache[]{tinyLfu, lru}) {
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 50; i++) {
+                    if (cache.get("hot" + i) == null) {
+                        cache.put("hot" + i, "value");
+                    }
+                }
+            }
+            for (int i = 0; i < 1000; i++) {
+                cache.put("scan" + i, "value");
+            }
+        }
+        int tinyLfuHits = 0;
+        int lruHits = 0;
+        for (int i = 0; i < 50; i++) {
+            tinyLfuHits += tinyLfu.inCache("hot" + i) ? 1 : 0;
+            lruHits += lru.inCache("hot" + i) ? 1 : 0;
+        }
+        assertEquals(0, lruHits);
+        assertTrue("only " + tinyLfuHits + " hot keys left", tinyLfuHits >= 45);
+    }
+
+    @Test
+    public void testByteBudget() {
+        long budget = 100000;
+        Cache[] caches = {
+                new LRUCache(budget, Weigher.BYTES),
+                new LFUCache(budget, Weigher.BYTES, 100),
+                new FIFOCache(budget, Weigher.BYTES),
+                new TinyLFUCache(budget, Weigher.BYTES, 100),
+                new ARCCache(budget, Weigher.BYTES)};
+        for (Cache cache : caches) {
+            String name = cache.getClass().getSimpleName();
+            Random random = new Random(7);
+            List<String> keys = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                value.setLength(0);
+                int length = random.nextInt(5000);
+                for (int c = 0; c < length; c++) {
+                    value.append('v');
+                }
+                String key = "key" + random.nextInt(300);
+                cache.put(key, value.toString());
+                cache.get("key" + random.nextInt(300));
+                keys.add(key);
+            }
+            long weight = 0;
+            for (String key : new HashSet<>(keys)) {
+                String cached = cache.get(key);
+                if (cached != null) {
+                    weight += Weigher.BYTES.weigh(key, cached);
+                }
+            }
+            assertTrue(name + " holds " + weight, weight <= budget);
+            assertTrue(name + " holds " + weight, weight > budget / 4);
+
+            // a value larger than the whole budget is never cached
+            cache.put("huge", new String(new char[(int) budget]));
+            assertFalse(name, cache.inCache("huge"));
+        }
+    }
+
+    @Test
+    public void testNegativeCache() {
+        NegativeCache negative = new NegativeCache(2);
+        negative.add("a");
+        negative.add("b");
+        assertTrue(negative.contains("a"));
+        negative.add("c");
+        assertFalse(negative.contains("b"));
+        assertTrue(negative.contains("a"));
+        negative.remove("a");
+        assertFalse(negative.contains("a"));
+        assertEquals(1, negative.size());
+    }
+
+    @Test
+    public void testServerInvalidatesNegativeCache() throws Exception {
+        StorageOptions storageOptions = new StorageOptions();
+        storageOptions.setType(StorageType.MEMORY);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        KVServer server = new KVServer(0, new CacheOptions(10, CacheStrategy.LRU), null, storageOptions,
+                localhost, localhost, 0);
+        assertFalse(server.inStorage("a"));
+        server.putKV("a", "1");
+        assertTrue(server.inStorage("a"));
+        assertEquals("1", server.getKV("a"));
+        server.deleteKV("a");
+        assertFalse(server.inStorage("a"));
+        assertFalse(server.inCache("a"));
+        server.importData(new String[]{"a", "2"});
+        assertTrue(server.inStorage("a"));
+        assertEquals("2", server.getKV("a"));
+    }
+
+    @Test
+    public void testWriteBackBuffer() {
+        WriteBackBuffer buffer = new WriteBackBuffer();
+        buffer.put("a", "1");
+        buffer.put("b", "1");
+        buffer.put("a", "2");
+        buffer.delete("b");
+        assertEquals(2, buffer.size());
+
+        Map<String, String> batch = buffer.beginFlush(10);
+        assertEquals("2", batch.get("a"));
+        assertSame(WriteBackBuffer.DELETED, batch.get("b"));
+        // still visible while being stored, and newer writes win
+        assertEquals("2", buffer.get("a"));
+        buffer.put("a", "3");
+        buffer.endFlush(batch, false);
+        assertEquals("3", buffer.get("a"));
+        assertSame(WriteBackBuffer.DELETED, buffer.get("b"));
+
+        batch = buffer.beginFlush(10);
+        buffer.endFlush(batch, true);
+        assertEquals(0, buffer.size());
+        assertNull(buffer.get("a"));
+    }
+
+    @Test
+    public void testServerWriteBack() throws Exception {
+        File dir = Files.createTempDirectory("writeback").toFile();
+        CacheOptions cacheOptions = new CacheOptions(10, CacheStrategy.LRU);
+        // long enough that only the explicit flushes below store anything
+        cacheOptions.setWriteBackIntervalMillis(60 * 60 * 1000);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        KVServer server = new KVServer(0, cacheOptions, dir.getPath(), new StorageOptions(),
+                localhost, localhost, 0);
+        for (int i = 0; i < 100; i++) {
+            server.putKV("counter", Integer.toString(i));
+        }
+        server.putKV("gone", "1");
+        server.deleteKV("gone");
+        assertFalse(new File(dir, "counter").exists());
+        assertTrue(server.inStorage("counter"));
+        assertFalse(server.inStorage("gone"));
+        server.clearCache();
+        assertEquals("99", server.getKV("counter"));
+
+        Iterator<Map.Entry<String, String>> exported = server.exportData();
+        assertTrue(exported.hasNext());
+        Map.Entry<String, String> entry = exported.next();
+        assertEquals("counter", entry.getKey());
+        assertEquals("99", entry.getValue());
+        assertFalse(exported.hasNext());
+        assertEquals("99", new String(Files.readAllBytes(new File(dir, "counter").toPath())));
+        server.clearStorage();
+    }
+
+    @Test
+    public void testPartitionedCacheDropsRanges() {
+        PartitionedCache cache = new PartitionedCache(4096, 8, new PartitionedCache.Factory() {
+            @Override
+            public Cache create(long capacity) {
+                return new LRUCache(capacity, Weigher.ENTRIES);
+            }
+        });
+        assertEquals(256, cache.getPartitionCount());
+        for (int i = 0; i < 2000; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        String lower = DigestUtils.md5Hex("key1");
+        String upper = DigestUtils.md5Hex("key2");
+        int dropped = cache.setRange(lower, upper);
+        assertTrue(dropped > 0 && dropped < 256);
+
+        int cached = 0;
+        int inRange = 0;
+        for (int i = 0; i < 2000; i++) {
+            String key = "key" + i;
+            boolean responsible = Storage.isHashInRange(DigestUtils.md5Hex(key), lower, upper);
+            inRange += responsible ? 1 : 0;
+            if (cache.get(key) != null) {
+                assertTrue(key, responsible);
+                cached++;
+            }
+            assertEquals(key, cache.get(key) != null, cache.inCache(key));
+        }
+        assertTrue(cached > inRange / 2);
+
+        // keys outside the range are not cached at all
+        cache.put("key1", "x");
+        assertEquals(Storage.isHashInRange(DigestUtils.md5Hex("key1"), lower, upper), cache.inCache("key1"));
+
+        // growing the range again serves the returning keys once they are cached anew
+        cache.setRange(upper, upper);
+        cache.put("key0", "value0");
+        assertEquals("value0", cache.get("key0"));
+
+        // but not the keys cut off by a boundary in a partition that stayed, they may be stale
+        int cutOff = 0;
+        for (int i = 2; i < 2000; i++) {
+            String hash = DigestUtils.md5Hex("key" + i);
+            boolean boundaryPartition = hash.startsWith(lower.substring(0, 2)) || hash.startsWith(upper.substring(0, 2));
+            if (boundaryPartition && !Storage.isHashInRange(hash, lower, upper)) {
+                assertNull("key" + i, cache.get("key" + i));
+                cutOff++;
+            }
+        }
+        assertTrue(cutOff > 0);
+    }
+
+    @Test
+    public void testARCAdapts() {
+        ARCCache arc = new ARCCache(100);
+        for (int i = 0; i < 50; i++) {
+            arc.put("hot" + i, "value");
+            arc.get("hot" + i);
+        }
+        // a scan only passes through the recency list
+        for (int i = 0; i < 1000; i++) {
+            arc.put("scan" + i, "value");
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue("hot" + i, arc.inCache("hot" + i));
+        }
+        assertTrue(arc.getWeight() <= 100);
+
+        // keys coming back right after eviction from the recency list grow its target
+        assertEquals(0, arc.getRecentTarget());
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 80; i++) {
+                arc.put("loop" + i, "value");
+            }
+        }
+        assertTrue(arc.getRecentTarget() > 0);
+        assertEquals(3, arc.hottestKeys(3).size());
+    }
+
+    @Test
+    public void testHottestKeys() {
+        Cache lru = new LRUCache(3);
+        Cache lfu = new LFUCache(3);
+        for (Cache cache : new Cache[]{lru, lfu}) {
+            cache.put("a", "1");
+            cache.put("b", "2");
+            cache.put("c", "3");
+            cache.get("a");
+            cache.get("a");
+            cache.get("b");
+        }
+        assertEquals(Arrays.asList("b", "a", "c"), lru.hottestKeys(3));
+        assertEquals(Arrays.asList("a", "b"), lfu.hottestKeys(2));
+    }
+
+    @Test
+    public void testServerWarmsCacheFromHints() throws Exception {
+        StorageOptions storageOptions = new StorageOptions();
+        storageOptions.setType(StorageType.MEMORY);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        KVServer exporter = new KVServer(0, new CacheOptions(1000, CacheStrategy.LFU), null, storageOptions,
+                localhost, localhost, 0);
+        KVServer importer = new KVServer(0, new CacheOptions(1000, CacheStrategy.LFU), null, storageOptions,
+                localhost, localhost, 0);
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            exporter.putKV("key" + i, "value" + i);
+            pairs.add("key" + i);
+            pairs.add("value" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            exporter.getKV("key7");
+        }
+        List<String> hints = exporter.exportHints();
+        assertEquals(50, hints.size());
+        assertTrue(hints.contains("key7"));
+        hints.add("missing");
+
+        importer.importData(pairs.toArray(new String[0]));
+        assertFalse(importer.inCache("key7"));
+        assertEquals(50, importer.warmCache(hints));
+        assertTrue(importer.inCache("key7"));
+        assertFalse(importer.inCache("missing"));
+        assertEquals("value7", importer.getKV("key7"));
+    }
+
+    @Test
+    public void testCacheStats() throws Exception {
+        Cache[] caches = {new LRUCache(2), new FIFOCache(2), new LFUCache(2), new TinyLFUCache(2), new ARCCache(2)};
+        for (Cache cache : caches) {
+            String name = cache.getClass().getSimpleName();
+            for (int i = 0; i < 5; i++) {
+                cache.put("key" + i, "value");
+            }
+            assertEquals(name, 2, cache.getWeight());
+            assertEquals(name, 3, cache.getEvictionCount());
+        }
+
+        CacheStats stats = new CacheStats(caches[0]);
+        stats.recordHit();
+        stats.recordHit();
+        stats.recordHit();
+        stats.recordMiss();
+        stats.recordLoad(2000000);
+        assertEquals(0.75, stats.getHitRatio(), 1e-9);
+        assertEquals(0.75, stats.getHitRatio(60000), 1e-9);
+        assertEquals(2.0, stats.getAverageLoadMillis(), 1e-9);
+        assertTrue(stats.report().contains("evictions=3"));
+
+        StorageOptions storageOptions = new StorageOptions();
+        storageOptions.setType(StorageType.MEMORY);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        CacheOptions cacheOptions = new CacheOptions(10, CacheStrategy.LRU);
+        cacheOptions.setStatsIntervalMillis(0);
+        KVServer server = new KVServer(0, cacheOptions, null, storageOptions, localhost, localhost, 0);
+        server.putKV("a", "1");
+        server.getKV("a");
+        server.clearCache();
+        server.getKV("a");
+        assertTrue(server.getCacheStats(), server.getCacheStats().startsWith("hits=1 misses=1 "));
+    }
+
+    @Test
+    public void testTinyLFUBasics() {
+        Cache cache = new TinyLFUCache(10);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+        cache.put("key3", "updated");
+        assertEquals("updated", cache.get("key3"));
+        cache.remove("key3");
+        assertFalse(cache.inCache("key3"));
+        for (int i = 0; i < 100; i++) {
+            cache.put("other" + i, "value");
+        }
+        int cached = 0;
+        for (int i = 0; i < 100; i++) {
+            cached += cache.inCache("other" + i) ? 1 : 0;
+        }
+        for (int i = 0; i < 10; i++) {
+            cached += cache.inCache("key" + i) ? 1 : 0;
+        }
+        assertTrue(cached <= 10);
+        cache.clear();
+        assertFalse(cache.inCache("key0"));
+    }
+}
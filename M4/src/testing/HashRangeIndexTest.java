@@ -0,0 +1,99 @@
+package testing;
+
+import app_kvServer.persistence.HashRangeIndex;
+import app_kvServer.persistence.Storage;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Iterator;
+
+public class HashRangeIndexTest extends TestCase {
+
+    private String path;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("hash_index").toString();
+    }
+
+    public void tearDown() {
+        deleteRecursively(new File(path));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static HashSet<String> toSet(Iterator<String> keys) {
+        HashSet<String> set = new HashSet<>();
+        while (keys.hasNext()) {
+            set.add(keys.next());
+        }
+        return set;
+    }
+
+    private void assertMatchesKeyInRange(HashRangeIndex index, Storage storage, String lower, String upper) {
+        HashSet<String> inRange = toSet(index.iterateInRange(lower, upper));
+        HashSet<String> outside = toSet(index.iterateOutsideRange(lower, upper));
+        for (String key : toSet(index.iterateKeys())) {
+            boolean expected = storage.keyInRange(key, lower, upper);
+            assertEquals(key, expected, inRange.contains(key));
+            assertEquals(key, !expected, outside.contains(key));
+        }
+    }
+
+    @Test
+    public void testRangesMatchKeyInRange() {
+        Storage storage = new Storage(path);
+        HashRangeIndex index = new HashRangeIndex();
+        for (int i = 0; i < 200; i++) {
+            index.add("key" + i);
+        }
+        String a = DigestUtils.md5Hex("key10");
+        String b = DigestUtils.md5Hex("key20");
+        String low = a.compareTo(b) < 0 ? a : b;
+        String high = a.compareTo(b) < 0 ? b : a;
+
+        assertMatchesKeyInRange(index, storage, low, high);
+        // wrap-around range
+        assertMatchesKeyInRange(index, storage, high, low);
+        // a single node owns the whole ring
+        assertMatchesKeyInRange(index, storage, low, low);
+    }
+
+    @Test
+    public void testIndexSurvivesCleanRestart() throws IOException {
+        Storage storage = new Storage(path);
+        storage.put("k1", "v1");
+        storage.put("k2", "v2");
+        storage.delete("k1");
+        storage.close();
+
+        storage = new Storage(path);
+        assertEquals(1, storage.createMap().size());
+        assertEquals("v2", storage.createMap().get("k2"));
+    }
+
+    @Test
+    public void testIndexRebuiltAfterCrash() throws IOException {
+        Storage storage = new Storage(path);
+        storage.put("k1", "v1");
+        // no close(): the dirty marker stays behind and a key file appears behind the index's back
+        Files.write(new File(path, "k2").toPath(), "v2".getBytes());
+
+        storage = new Storage(path);
+        HashRangeIndex index = HashRangeIndex.open(new File(path, ".storage-index"), new File(path));
+        assertEquals(2, index.size());
+        assertEquals(2, storage.createMap().size());
+    }
+}
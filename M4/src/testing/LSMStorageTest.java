@@ -0,0 +1,137 @@
+package testing;
+
+import app_kvServer.persistence.LSMStorage;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class LSMStorageTest extends TestCase {
+
+    private String path;
+    private LSMStorage storage;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("lsm_storage").toString();
+        storage = new LSMStorage(path);
+    }
+
+    public void tearDown() {
+        storage.clearStorage();
+        storage.close();
+        for (File f : new File(path).listFiles()) {
+            f.delete();
+        }
+        new File(path).delete();
+    }
+
+    private static String value(int i, int length) {
+        StringBuilder value = new StringBuilder(length);
+        while (value.length() < length) {
+            value.append(i).append('-');
+        }
+        return value.toString();
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        assertTrue(storage.put("k1", "v1"));
+        assertEquals("v1", storage.get("k1"));
+        assertTrue(storage.put("k1", "v2"));
+        assertEquals("v2", storage.get("k1"));
+
+        assertTrue(storage.delete("k1"));
+        assertFalse(storage.inStorage("k1"));
+        assertFalse(storage.delete("k1"));
+    }
+
+    @Test
+    public void testFlushedTablesSurviveReopen() throws IOException {
+        // enough data to push the memtable out to a table in the background
+        for (int i = 0; i < 1200; i++) {
+            storage.put("key" + i, value(i, 4000));
+        }
+        storage.delete("key7");
+        storage.put("key8", "updated");
+        storage.close();
+
+        storage = new LSMStorage(path);
+        assertEquals(value(0, 4000), storage.get("key0"));
+        assertEquals(value(1199, 4000), storage.get("key1199"));
+        assertEquals("updated", storage.get("key8"));
+        assertFalse(storage.inStorage("key7"));
+        assertEquals(1199, storage.createMap().size());
+    }
+
+    @Test
+    public void testBloomFiltersSkipTablesForMissingKeys() throws IOException {
+        for (int i = 0; i < 1200; i++) {
+            storage.put("key" + i, value(i, 4000));
+        }
+        storage.close();
+        // a lost filter is rebuilt from its table on open
+        for (File f : new File(path).listFiles()) {
+            if (f.getName().endsWith(".bloom")) {
+                assertTrue(f.delete());
+            }
+        }
+
+        storage = new LSMStorage(path);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(storage.inStorage("missing" + i));
+        }
+        assertEquals(value(42, 4000), storage.get("key42"));
+        assertTrue(storage.getBloomNegatives() > 0);
+        assertTrue(storage.getBloomTruePositives() > 0);
+        assertTrue(storage.getBloomFalsePositives() < 100);
+    }
+
+    @Test
+    public void testIteratorMergesMemtableAndTables() throws IOException {
+        for (int i = 0; i < 1200; i++) {
+            storage.put("key" + i, value(i, 4000));
+        }
+        // newer versions and deletions still in the memtable shadow the flushed ones
+        storage.put("key5", "updated");
+        storage.delete("key6");
+
+        Iterator<Map.Entry<String, String>> entries = storage.iterator();
+        String previous = "";
+        int count = 0;
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            assertTrue(entry.getKey().compareTo(previous) > 0);
+            assertFalse(entry.getKey().equals("key6"));
+            if (entry.getKey().equals("key5")) {
+                assertEquals("updated", entry.getValue());
+            }
+            previous = entry.getKey();
+            count++;
+        }
+        assertEquals(1199, count);
+    }
+
+    @Test
+    public void testRangeExportAndRemoval() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        String lower = DigestUtils.md5Hex("key3");
+        String upper = DigestUtils.md5Hex("key7");
+
+        HashMap<String, String> exported = storage.createMap(lower, upper);
+        assertTrue(storage.removeExtraData(lower, upper));
+        for (int i = 0; i < 20; i++) {
+            String key = "key" + i;
+            boolean inRange = storage.keyInRange(key, lower, upper);
+            assertEquals(inRange, storage.inStorage(key));
+            assertEquals(!inRange, exported.containsKey(key));
+        }
+    }
+}
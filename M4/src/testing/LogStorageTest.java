@@ -0,0 +1,126 @@
+package testing;
+
+import app_kvServer.persistence.LogStorage;
+import app_kvServer.persistence.StorageOptions;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LogStorageTest extends TestCase {
+
+    private String path;
+    private LogStorage storage;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("log_storage").toString();
+        storage = new LogStorage(path);
+    }
+
+    public void tearDown() {
+        storage.clearStorage();
+        storage.close();
+        for (File f : new File(path).listFiles()) {
+            f.delete();
+        }
+        new File(path).delete();
+    }
+
+    @Test
+    public void testPutGetUpdate() throws IOException {
+        assertTrue(storage.put("k1", "v1"));
+        assertTrue(storage.inStorage("k1"));
+        assertEquals("v1", storage.get("k1"));
+
+        assertTrue(storage.put("k1", "v2"));
+        assertEquals("v2", storage.get("k1"));
+    }
+
+    @Test
+    public void testDelete() {
+        storage.put("k1", "v1");
+        assertTrue(storage.delete("k1"));
+        assertFalse(storage.inStorage("k1"));
+        assertFalse(storage.delete("k1"));
+
+        Exception ex = null;
+        try {
+            storage.get("k1");
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    @Test
+    public void testRecoveryAfterReopen() throws IOException {
+        storage.put("k1", "v1");
+        storage.put("k2", "v2");
+        storage.put("k1", "v3");
+        storage.delete("k2");
+        storage.close();
+
+        storage = new LogStorage(path);
+        assertEquals("v3", storage.get("k1"));
+        assertFalse(storage.inStorage("k2"));
+    }
+
+    @Test
+    public void testEveryBatchSyncWithConcurrentWriters() throws Exception {
+        storage.close();
+        StorageOptions options = new StorageOptions();
+        options.setWalSyncMode("every-batch");
+        storage = new LogStorage(path, options);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread writer = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        if (!storage.put("key" + id + "-" + i, "value" + i)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(storage.delete("key0-0"));
+        storage.close();
+
+        storage = new LogStorage(path, options);
+        assertFalse(storage.inStorage("key0-0"));
+        assertEquals("value49", storage.get("key7-49"));
+    }
+
+    @Test
+    public void testRangeExportAndRemoval() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            storage.put("key" + i, "value" + i);
+        }
+        String lower = DigestUtils.md5Hex("key3");
+        String upper = DigestUtils.md5Hex("key7");
+
+        HashMap<String, String> exported = storage.createMap(lower, upper);
+        assertTrue(storage.removeExtraData(lower, upper));
+        for (int i = 0; i < 20; i++) {
+            String key = "key" + i;
+            boolean inRange = storage.keyInRange(key, lower, upper);
+            assertEquals(inRange, storage.inStorage(key));
+            assertEquals(!inRange, exported.containsKey(key));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package testing;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.BinaryProtocol;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+import shared.messages.MessageFramer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+public class MessageFramerTest extends TestCase {
+
+    /**
+     * Hands out at most a few bytes per read, so messages span reads.
+     */
+    private static InputStream trickle(String data, int chunk) {
+        return trickle(data.getBytes(), chunk);
+    }
+
+    private static InputStream trickle(byte[] data, final int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    private static String text(ByteBuffer frame) {
+        return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    @Test
+    public void testMessagesAcrossReads() throws IOException {
+        MessageFramer framer = new MessageFramer(trickle("PUT key a value\r\nGET key\r\n\r\nDELETE key", 3), 1000);
+
+        KVMessage put = framer.nextMessage();
+        assertEquals(StatusType.PUT, put.getStatus());
+        assertEquals("key", put.getKey());
+        assertEquals("a value", put.getValue());
+        assertEquals(StatusType.GET, framer.nextMessage().getStatus());
+        // an empty message between two CR LFs, as sent by a client closing its connection
+        assertEquals(0, framer.next().remaining());
+        // the stream ends without a CR
+        assertEquals("DELETE key", text(framer.next()));
+        assertNull(framer.next());
+    }
+
+    @Test
+    public void testLongMessageIsCut() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+        String message = "PUT key " + value;
+        MessageFramer framer = new MessageFramer(trickle(message + "\r\nGET key\r\n", 4096), 20000);
+
+        assertEquals(message.substring(0, 20000), text(framer.next()));
+        assertEquals(message.substring(20000, 40000), text(framer.next()));
+        assertEquals(message.substring(40000), text(framer.next()));
+        assertEquals(StatusType.GET, framer.nextMessage().getStatus());
+        assertNull(framer.nextMessage());
+    }
+
+    @Test
+    public void testBinaryFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(BinaryProtocol.HANDSHAKE);
+        stream.write(BinaryProtocol.encode(new KVMessage(StatusType.PUT, "key", "two\r\nlines")));
+        stream.write(BinaryProtocol.encode(new KVMessage(StatusType.GET, "key")));
+        stream.write(BinaryProtocol.encode(new KVMessage(StatusType.KEYRANGE)));
+        MessageFramer framer = new MessageFramer(trickle(stream.toByteArray(), 5), 1000);
+
+        assertTrue(BinaryProtocol.isHandshake(framer.next()));
+        framer.setBinary(true);
+        KVMessage put = framer.nextMessage();
+        assertEquals(StatusType.PUT, put.getStatus());
+        assertEquals("two\r\nlines", put.getValue());
+        KVMessage get = framer.nextMessage();
+        assertEquals("key", get.getKey());
+        assertNull(get.getValue());
+        assertEquals("KEYRANGE\r\n", framer.nextMessage().getMessage());
+        assertNull(framer.nextMessage());
+    }
+
+    @Test
+    public void testStreamedFramesAreJoined() throws IOException {
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; data.length() < 3 * BinaryProtocol.CHUNK_SIZE; i++) {
+            data.append("key").append(i).append(';').append("value").append(i).append(';');
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        OutputStream key = BinaryProtocol.keyStream(stream, StatusType.TR_RES);
+        key.write(data.toString().getBytes());
+        key.close();
+        MessageFramer framer = new MessageFramer(new ByteArrayInputStream(stream.toByteArray()), 1000);
+        framer.setBinary(true);
+
+        KVMessage msg = framer.nextMessage();
+        assertEquals(StatusType.TR_RES, msg.getStatus());
+        assertEquals(data.toString(), msg.getKey());
+        assertNull(framer.nextMessage());
+    }
+
+    @Test
+    public void testRequestIdsAndBufferedMessages() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int id = 1; id <= 2; id++) {
+            KVMessage get = new KVMessage(StatusType.GET, "key" + id);
+            get.setRequestId(id);
+            stream.write(BinaryProtocol.encode(get));
+        }
+        byte[] frames = stream.toByteArray();
+        // the second frame misses its last byte
+        MessageFramer framer = new MessageFramer(new ByteArrayInputStream(frames, 0, frames.length - 1), 1000);
+        framer.setBinary(true);
+
+        assertFalse(framer.hasMessage());
+        assertEquals(1, framer.nextMessage().getRequestId());
+        assertFalse(framer.hasMessage());
+
+        framer = new MessageFramer(trickle("GET a\r\nGET b\r\nGET", 64), 1000);
+        assertEquals("GET a", text(framer.next()));
+        assertTrue(framer.hasMessage());
+        assertEquals("GET b", text(framer.next()));
+        assertFalse(framer.hasMessage());
+    }
+
+    @Test
+    public void testMessagesMeasuredWithoutReading() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        OutputStream key = BinaryProtocol.keyStream(stream, StatusType.TR_RES);
+        key.write(new byte[BinaryProtocol.CHUNK_SIZE + 1]);
+        key.close();
+        int streamed = stream.size();
+        stream.write(BinaryProtocol.encode(new KVMessage(StatusType.GET, "key")));
+        byte[] frames = stream.toByteArray();
+
+        // the streamed message is only whole with its last frame
+        assertEquals(-1, BinaryProtocol.messageLength(frames, 0, streamed - 1, Integer.MAX_VALUE));
+        assertEquals(streamed, BinaryProtocol.messageLength(frames, 0, frames.length, Integer.MAX_VALUE));
+        assertEquals(BinaryProtocol.CHUNK_SIZE + 1, MessageFramer.parseBinary(frames, 0, streamed).getKey().length());
+        int length = BinaryProtocol.messageLength(frames, streamed, frames.length - streamed, Integer.MAX_VALUE);
+        assertEquals(frames.length - streamed, length);
+        assertEquals("key", MessageFramer.parseBinary(frames, streamed, length).getKey());
+    }
+
+    @Test
+    public void testOversizedMessagesRejected() throws IOException {
+        // a header announcing a 2 GB value, which must fail before the value is read
+        ByteBuffer header = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE);
+        header.put((byte) StatusType.PUT.ordinal()).put((byte) 3).putInt(0).putInt(3).putInt(2000 * 1000 * 1000);
+        MessageFramer framer = new MessageFramer(new SequenceInputStream(new ByteArrayInputStream(header.array()),
+                new ByteArrayInputStream(new byte[1000 * 1000])), 1000, 1000);
+        framer.setBinary(true);
+        IOException ex = null;
+        try {
+            framer.nextMessage();
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+        assertFalse(ex instanceof EOFException);
+
+        // a message streamed in frames that are each small enough
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        OutputStream key = BinaryProtocol.keyStream(stream, StatusType.PUT);
+        key.write(new byte[3 * BinaryProtocol.CHUNK_SIZE]);
+        key.close();
+        byte[] frames = stream.toByteArray();
+        framer = new MessageFramer(new ByteArrayInputStream(frames), 1000, 2 * BinaryProtocol.CHUNK_SIZE);
+        framer.setBinary(true);
+        ex = null;
+        try {
+            framer.nextMessage();
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+        ex = null;
+        try {
+            BinaryProtocol.messageLength(frames, 0, frames.length, 2 * BinaryProtocol.CHUNK_SIZE);
+        } catch (IOException e) {
+            ex = e;
+        }
+        assertNotNull(ex);
+    }
+
+    @Test
+    public void testUnparsableMessageFails() throws IOException {
+        MessageFramer framer = new MessageFramer(trickle("NOT_A_STATUS key\r\n", 64), 1000);
+        assertEquals(StatusType.FAILED, framer.nextMessage().getStatus());
+    }
+}
@@ -0,0 +1,173 @@
+package testing;
+
+import app_kvServer.ConnectionOptions;
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.IKVServer.ConnectionMode;
+import app_kvServer.IKVServer.StorageType;
+import app_kvServer.KVServer;
+import app_kvServer.caching.CacheOptions;
+import app_kvServer.persistence.StorageOptions;
+import client.KVStore;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.ConnectionThreads;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class NioServerTest extends TestCase {
+
+    // below the ephemeral range, so no outgoing connection of the suite can hold it
+    private static final int PORT = 30123;
+
+    private static KVServer server;
+
+    public void setUp() throws Exception {
+        if (server != null) {
+            return;
+        }
+        StorageOptions storageOptions = new StorageOptions();
+        storageOptions.setType(StorageType.MEMORY);
+        ConnectionOptions connectionOptions = new ConnectionOptions();
+        connectionOptions.setMode(ConnectionMode.NIO);
+        connectionOptions.setIoThreads(1);
+        connectionOptions.setWorkerThreads(4);
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        // no ECS on this port, the server is activated by hand instead
+        server = new KVServer(PORT, new CacheOptions(10, CacheStrategy.LRU), null, storageOptions,
+                localhost, localhost, 1);
+        server.setConnectionOptions(connectionOptions);
+        server.setStatus("ACTIVE");
+        server.setRange("00000000000000000000000000000000", "ffffffffffffffffffffffffffffffff");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.run();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Socket connect() throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("127.0.0.1", PORT);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsAnsweredInOrder() throws Exception {
+        Socket socket = connect();
+        try {
+            OutputStream output = socket.getOutputStream();
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // one write holding several requests, the last one split over two writes
+            output.write("PUT nio1 first value\r\nGET nio1\r\nGET nio".getBytes());
+            output.flush();
+            Thread.sleep(50);
+            output.write("2\r\n".getBytes());
+            output.flush();
+            assertEquals("PUT_SUCCESS nio1 first value", input.readLine());
+            assertEquals("GET_SUCCESS nio1 first value", input.readLine());
+            assertEquals("GET_ERROR nio2", input.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testBinaryClient() throws Exception {
+        // wait for the server to listen
+        connect().close();
+        KVStore client = new KVStore("127.0.0.1", PORT);
+        client.setBinaryProtocol(true);
+        client.connect();
+        List<Future<KVMessage>> gets = new ArrayList<>();
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 50 * 1000) {
+            large.append("two\r\nlines ");
+        }
+        try {
+            assertTrue(client.isBinary());
+            Future<KVMessage> put = client.submit(new KVMessage(StatusType.PUT, "nio3", large.toString()));
+            for (int i = 0; i < 100; i++) {
+                gets.add(client.submit(new KVMessage(StatusType.GET, "nio3")));
+            }
+            while (client.getPendingCount() > 0) {
+                client.receiveMessage();
+            }
+            assertEquals(StatusType.PUT_SUCCESS, put.get().getStatus());
+        } finally {
+            client.disconnect();
+        }
+        for (Future<KVMessage> get : gets) {
+            assertEquals(large.toString(), get.get().getValue());
+        }
+    }
+
+    @Test
+    public void testPerConnectionExecutor() throws Exception {
+        ExecutorService executor = ConnectionThreads.newPerConnectionExecutor("test");
+        final CountDownLatch started = new CountDownLatch(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        // every task blocks, so each needs a thread of its own
+        for (int i = 0; i < 100; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testManyConnections() throws Exception {
+        Socket[] sockets = new Socket[50];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = connect();
+                sockets[i].getOutputStream().write(("PUT conn" + i + " " + i + "\r\n").getBytes());
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                BufferedReader input = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+                assertEquals("PUT_SUCCESS conn" + i + " " + i, input.readLine());
+            }
+            assertEquals(Integer.toString(7), server.getKV("conn7"));
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
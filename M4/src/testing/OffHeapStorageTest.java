@@ -0,0 +1,74 @@
+package testing;
+
+import app_kvServer.persistence.OffHeapStorage;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class OffHeapStorageTest extends TestCase {
+
+    private OffHeapStorage storage;
+
+    public void setUp() {
+        storage = new OffHeapStorage();
+    }
+
+    public void tearDown() {
+        storage.close();
+    }
+
+    private void assertMatches(Map<String, String> expected) throws IOException {
+        assertEquals(expected.size(), storage.size());
+        assertEquals(expected, storage.createMap());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), storage.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testRandomOperationsMatchHashMap() throws IOException {
+        // enough keys to grow the table and enough overwrites to compact the slabs
+        Random random = new Random(42);
+        HashMap<String, String> expected = new HashMap<>();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 30000; i++) {
+            String key = "key" + random.nextInt(5000);
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(key) != null, storage.delete(key));
+            } else {
+                String value = padding.toString() + i;
+                expected.put(key, value);
+                assertTrue(storage.put(key, value));
+            }
+        }
+        assertMatches(expected);
+    }
+
+    @Test
+    public void testRemoveExtraData() throws IOException {
+        HashMap<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            storage.put("key" + i, "value" + i);
+            expected.put("key" + i, "value" + i);
+        }
+        String lower = DigestUtils.md5Hex("key10");
+        String upper = DigestUtils.md5Hex("key20");
+
+        HashMap<String, String> exported = storage.createMap(lower, upper);
+        assertTrue(storage.removeExtraData(lower, upper));
+        for (String key : exported.keySet()) {
+            assertEquals(expected.remove(key), exported.get(key));
+        }
+        assertFalse(exported.isEmpty());
+        assertFalse(expected.isEmpty());
+        assertMatches(expected);
+    }
+}
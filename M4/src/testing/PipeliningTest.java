@@ -0,0 +1,68 @@
+package testing;
+
+import client.KVStore;
+import junit.framework.TestCase;
+import org.junit.Test;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class PipeliningTest extends TestCase {
+
+    @Test
+    public void testResponsesMatchedById() throws Exception {
+        KVStore client = new KVStore("localhost", 50000);
+        client.setBinaryProtocol(true);
+        client.connect();
+        List<Future<KVMessage>> puts = new ArrayList<>();
+        List<Future<KVMessage>> gets = new ArrayList<>();
+        List<Future<KVMessage>> deletes = new ArrayList<>();
+        try {
+            assertTrue(client.isBinary());
+            // every request is sent before the first response is read
+            for (int i = 0; i < 500; i++) {
+                puts.add(client.submit(new KVMessage(StatusType.PUT, "pipe" + i, "v" + i)));
+            }
+            for (int i = 0; i < 500; i++) {
+                gets.add(client.submit(new KVMessage(StatusType.GET, "pipe" + i)));
+            }
+            // leaves the suite server's storage as it was
+            for (int i = 0; i < 500; i++) {
+                deletes.add(client.submit(new KVMessage(StatusType.PUT, "pipe" + i, "null")));
+            }
+            // broadcasts from the ECS carry no request id and are skipped
+            while (client.getPendingCount() > 0) {
+                client.receiveMessage();
+            }
+        } finally {
+            client.disconnect();
+        }
+        for (int i = 0; i < 500; i++) {
+            KVMessage put = puts.get(i).get();
+            // PUT_UPDATE if an earlier run was cut short before its deletes
+            assertTrue(put.getStatus() == StatusType.PUT_SUCCESS || put.getStatus() == StatusType.PUT_UPDATE);
+            assertEquals("pipe" + i, put.getKey());
+            KVMessage get = gets.get(i).get();
+            assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+            assertEquals("v" + i, get.getValue());
+            assertEquals(StatusType.DELETE_SUCCESS, deletes.get(i).get().getStatus());
+        }
+    }
+
+    @Test
+    public void testSubmitNeedsBinaryProtocol() throws Exception {
+        KVStore client = new KVStore("localhost", 50000);
+        client.connect();
+        try {
+            client.submit(new KVMessage(StatusType.GET, "pipe0"));
+            fail("Text connections carry no request ids");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            client.disconnect();
+        }
+    }
+}
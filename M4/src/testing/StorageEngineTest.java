@@ -0,0 +1,103 @@
+package testing;
+
+import app_kvServer.persistence.IStorageEngine;
+import app_kvServer.persistence.LSMStorage;
+import app_kvServer.persistence.LogStorage;
+import app_kvServer.persistence.MemoryStorage;
+import app_kvServer.persistence.OffHeapStorage;
+import app_kvServer.persistence.Storage;
+import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Runs the same checks against every {@link IStorageEngine}.
+ */
+public class StorageEngineTest extends TestCase {
+
+    private String path;
+    private List<IStorageEngine> engines;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("engines").toString();
+        engines = new ArrayList<>();
+        engines.add(new Storage(new File(path, "file").getPath()));
+        engines.add(new LogStorage(new File(path, "log").getPath()));
+        engines.add(new LSMStorage(new File(path, "lsm").getPath()));
+        engines.add(new MemoryStorage());
+        engines.add(new OffHeapStorage());
+    }
+
+    public void tearDown() {
+        for (IStorageEngine engine : engines) {
+            engine.close();
+        }
+        deleteRecursively(new File(path));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static boolean keyInRange(String key, String lower, String upper) {
+        String hash = DigestUtils.md5Hex(key);
+        if (lower.compareTo(upper) < 0) {
+            return hash.compareTo(lower) > 0 && hash.compareTo(upper) <= 0;
+        }
+        return hash.compareTo(lower) > 0 || hash.compareTo(upper) <= 0;
+    }
+
+    @Test
+    public void testPutGetDelete() throws IOException {
+        for (IStorageEngine engine : engines) {
+            String name = engine.getClass().getSimpleName();
+            assertTrue(name, engine.put("k1", "v1"));
+            assertEquals(name, "v1", engine.get("k1"));
+            assertTrue(name, engine.put("k1", "v2"));
+            assertEquals(name, "v2", engine.get("k1"));
+            assertTrue(name, engine.delete("k1"));
+            assertFalse(name, engine.inStorage("k1"));
+            try {
+                engine.get("k1");
+                fail(name);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testRangeExportAndRemoval() throws IOException {
+        String lower = DigestUtils.md5Hex("key3");
+        String upper = DigestUtils.md5Hex("key7");
+        for (IStorageEngine engine : engines) {
+            String name = engine.getClass().getSimpleName();
+            for (int i = 0; i < 50; i++) {
+                engine.put("key" + i, "value" + i);
+            }
+            HashMap<String, String> exported = engine.createMap(lower, upper);
+            assertTrue(name, engine.removeExtraData(lower, upper));
+            for (int i = 0; i < 50; i++) {
+                String key = "key" + i;
+                boolean inRange = keyInRange(key, lower, upper);
+                assertEquals(name + " " + key, inRange, engine.inStorage(key));
+                assertEquals(name + " " + key, !inRange, exported.containsKey(key));
+            }
+            assertTrue(name, engine.clearStorage());
+            assertTrue(name, engine.createMap().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package testing;
+
+import app_kvServer.persistence.DeflateCodec;
+import app_kvServer.persistence.IStorageEngine;
+import app_kvServer.persistence.LSMStorage;
+import app_kvServer.persistence.LogStorage;
+import app_kvServer.persistence.Storage;
+import app_kvServer.persistence.StorageOptions;
+import app_kvServer.persistence.ValueCompression;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class ValueCompressionTest extends TestCase {
+
+    private String path;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("compression").toString();
+    }
+
+    public void tearDown() {
+        deleteRecursively(new File(path));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String json(int entries) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < entries; i++) {
+            json.append("\"field").append(i).append("\": \"value ").append(i % 7).append("\", ");
+        }
+        return json.append("}").toString();
+    }
+
+    @Test
+    public void testEncodeDecode() throws IOException {
+        ValueCompression compression = new ValueCompression(new DeflateCodec(), 64);
+        String large = json(500);
+        byte[] encoded = compression.encode(large);
+        assertTrue(encoded.length < large.length() / 2);
+        assertEquals(large, ValueCompression.decode(encoded));
+
+        // below the threshold values are stored as they are
+        String small = json(1);
+        assertEquals(small, new String(compression.encode(small), StandardCharsets.UTF_8));
+        assertEquals(small, ValueCompression.decode(compression.encode(small)));
+
+        // a plain value that looks like a compressed one still round-trips
+        String tricky = "\0KVZ\1\0\0\0\5hello";
+        assertEquals(tricky, ValueCompression.decode(compression.encode(tricky)));
+        assertEquals(tricky, ValueCompression.decode(ValueCompression.NONE.encode(tricky)));
+    }
+
+    @Test
+    public void testEnginesReadCompressedValuesAfterReopen() throws IOException {
+        StorageOptions options = new StorageOptions();
+        options.setCompressionCodec("deflate");
+        String large = json(500);
+        for (String engine : new String[]{"file", "log", "lsm"}) {
+            String dir = new File(path, engine).getPath();
+            IStorageEngine store = open(engine, dir, options);
+            store.put("large", large);
+            store.put("small", "small");
+            assertEquals(engine, large, store.get("large"));
+            store.close();
+
+            // reopened without compression, old values are still readable
+            store = open(engine, dir, new StorageOptions());
+            assertEquals(engine, large, store.get("large"));
+            assertEquals(engine, "small", store.get("small"));
+            assertEquals(engine, large, store.createMap().get("large"));
+            store.close();
+        }
+    }
+
+    @Test
+    public void testCompressedFileIsSmaller() throws IOException {
+        StorageOptions options = new StorageOptions();
+        options.setCompressionCodec("deflate");
+        Storage store = new Storage(path, options);
+        String large = json(500);
+        store.put("large", large);
+        assertTrue(new File(path, "large").length() < large.length() / 2);
+        store.close();
+    }
+
+    private static IStorageEngine open(String engine, String dir, StorageOptions options) {
+        switch (engine) {
+            case "log":
+                return new LogStorage(dir, options);
+            case "lsm":
+                return new LSMStorage(dir, options);
+            default:
+                return new Storage(dir, options);
+        }
+    }
+}
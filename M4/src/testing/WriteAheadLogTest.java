@@ -0,0 +1,144 @@
+package testing;
+
+import app_kvServer.persistence.LSMStorage;
+import app_kvServer.persistence.Storage;
+import app_kvServer.persistence.StorageOptions;
+import app_kvServer.persistence.WriteAheadLog;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WriteAheadLogTest extends TestCase {
+
+    private String path;
+
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("wal").toString();
+    }
+
+    public void tearDown() {
+        deleteRecursively(new File(path));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static LinkedHashMap<String, String> replay(WriteAheadLog wal) throws IOException {
+        final LinkedHashMap<String, String> records = new LinkedHashMap<>();
+        wal.replay(new WriteAheadLog.Visitor() {
+            @Override
+            public void put(String key, String value) {
+                records.put(key, value);
+            }
+
+            @Override
+            public void delete(String key) {
+                records.put(key, null);
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void testReplayStopsAtTornRecord() throws IOException {
+        File file = new File(path, "test.log");
+        WriteAheadLog wal = WriteAheadLog.open(file, WriteAheadLog.SyncMode.EVERY_BATCH, 100);
+        wal.sync(wal.append(WriteAheadLog.OP_PUT, "k1", "v1"));
+        wal.sync(wal.append(WriteAheadLog.OP_DELETE, "k2", null));
+        wal.sync(wal.append(WriteAheadLog.OP_PUT, "k3", "a value that gets cut short"));
+        wal.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        wal = WriteAheadLog.open(file, WriteAheadLog.SyncMode.NONE, 100);
+        LinkedHashMap<String, String> records = replay(wal);
+        assertEquals(2, records.size());
+        assertEquals("v1", records.get("k1"));
+        assertTrue(records.containsKey("k2"));
+        assertNull(records.get("k2"));
+
+        // appends continue after the last intact record
+        wal.append(WriteAheadLog.OP_PUT, "k4", "v4");
+        wal.close();
+        assertEquals(3, replay(WriteAheadLog.open(file, WriteAheadLog.SyncMode.NONE, 100)).size());
+    }
+
+    @Test
+    public void testConcurrentWritersShareSyncs() throws Exception {
+        final WriteAheadLog wal = WriteAheadLog.open(new File(path, "test.log"),
+                WriteAheadLog.SyncMode.EVERY_BATCH, 100);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            wal.sync(wal.append(WriteAheadLog.OP_PUT, "key" + id + "-" + i, "value" + i));
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        wal.close();
+        assertEquals(0, failures.get());
+        assertEquals(400, replay(WriteAheadLog.open(new File(path, "test.log"),
+                WriteAheadLog.SyncMode.NONE, 100)).size());
+    }
+
+    @Test
+    public void testFileStorageRedoesLoggedWrites() throws IOException {
+        StorageOptions options = new StorageOptions();
+        options.setWalSyncMode("every-batch");
+        Storage storage = new Storage(path, options);
+        storage.put("k1", "v1");
+        storage.put("k2", "v2");
+        // crash before the key file reached the disk: no close(), file lost
+        new File(path, "k1").delete();
+
+        storage = new Storage(path, options);
+        assertEquals("v1", storage.get("k1"));
+        assertEquals("v2", storage.get("k2"));
+        storage.close();
+    }
+
+    @Test
+    public void testLSMStorageRecoversMemtable() throws IOException {
+        StorageOptions options = new StorageOptions();
+        options.setWalSyncMode("every-batch");
+        LSMStorage storage = new LSMStorage(path, options);
+        storage.put("k1", "v1");
+        storage.put("k2", "v2");
+        storage.delete("k1");
+        // crash: no close(), the memtable never reached a table
+
+        storage = new LSMStorage(path, options);
+        assertFalse(storage.inStorage("k1"));
+        assertEquals("v2", storage.get("k2"));
+        storage.close();
+    }
+}